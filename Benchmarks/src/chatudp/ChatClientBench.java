@@ -0,0 +1,87 @@
+package chatudp;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import org.openjdk.jmh.annotations.*;
+
+// Parse das mensagens texto no cliente. ChatClient é uma janela, então este
+// benchmark precisa de display (não roda com java.awt.headless).
+//
+// processServerMessage só pode rodar na thread do Swing: cada invocação
+// manda BATCH mensagens num único invokeAndWait, e a passagem de thread
+// fica diluída no lote em vez de virar a medida.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChatClientBench {
+    private static final int BATCH = 1000;
+
+    @Param({"NEW_MESSAGE", "ROOM_MESSAGE", "USER_LIST", "HISTORY_END"})
+    public String kind;
+
+    private ChatClient client;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        SwingUtilities.invokeAndWait(() -> client = new ChatClient());
+        switch (kind) {
+            case "NEW_MESSAGE":
+                message = "NEW_MESSAGE|ana|olá, mundo|18/10/2026 10:00:00|42";
+                break;
+            case "ROOM_MESSAGE":
+                message = "ROOM_MESSAGE|sala|ana|olá, sala|18/10/2026 10:00:00|42";
+                break;
+            case "USER_LIST":
+                StringBuilder list = new StringBuilder("USER_LIST");
+                for (int i = 0; i < 32; i++) {
+                    list.append("|user").append(i).append(i % 3 == 0 ? ":offline" : ":online");
+                }
+                message = list.toString();
+                break;
+            case "HISTORY_END":
+                message = "HISTORY_END|42";
+                break;
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+    }
+
+    // As linhas vão para a área de chat pela fila do Swing; esvaziá-la a cada
+    // iteração mantém o custo do append igual do começo ao fim
+    @TearDown(Level.Iteration)
+    public void clearChat() throws Exception {
+        SwingUtilities.invokeAndWait(() -> clear(client.getContentPane()));
+    }
+
+    private static void clear(Container container) {
+        for (Component child : container.getComponents()) {
+            if (child instanceof JTextArea) {
+                ((JTextArea) child).setText("");
+            } else if (child instanceof Container) {
+                clear((Container) child);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        SwingUtilities.invokeAndWait(client::dispose);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void processServerMessage() throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            for (int i = 0; i < BATCH; i++) {
+                client.processServerMessage(message);
+            }
+        });
+    }
+}
@@ -0,0 +1,129 @@
+package chatudp;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Caminhos quentes do servidor sem o laço de recepção: os comandos entram
+// direto em processPayload e as respostas vão para um socket que ninguém lê.
+// Com chat.workers=0 o comando executa na própria thread do benchmark.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatServerBench {
+    private static final String USER = "bench";
+    private static final String ROOM = "sala";
+    private static final int HISTORY = 1000;
+
+    // Base dos estados abaixo; cada um chama open() no próprio @Setup, porque
+    // o JMH não garante rodar o @Setup da superclasse primeiro
+    public static abstract class Server {
+        ChatServer server;
+        DatagramChannel sink;
+        InetAddress address;
+        int port;
+        PrintStream console;
+
+        void open() throws Exception {
+            System.setProperty("chat.port", "0");
+            System.setProperty("chat.log", "false");
+            System.setProperty("chat.workers", "0");
+            System.setProperty("chat.rate", "false");
+            System.setProperty("chat.reliable", "false");
+
+            sink = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            address = InetAddress.getLoopbackAddress();
+            port = ((InetSocketAddress) sink.getLocalAddress()).getPort();
+
+            // O servidor imprime cada mensagem; o console dominaria a medida
+            console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            server = new ChatServer();
+        }
+
+        void send(String command) {
+            byte[] data = command.getBytes(StandardCharsets.UTF_8);
+            server.processPayload(data, 0, data.length, address, port);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            server.stop();
+            sink.close();
+            System.setOut(console);
+        }
+    }
+
+    // Um comando de cada tipo, com o usuário registrado, inscrito na sala e
+    // HISTORY mensagens no histórico (GET_MESSAGES e JOIN pedem as 10 últimas)
+    @State(Scope.Benchmark)
+    public static class Dispatch extends Server {
+        @Param({"REGISTER", "MESSAGE", "HEARTBEAT", "GET_USERS", "GET_MESSAGES",
+                "GET_REPORT", "JOIN", "ROOM_MESSAGE"})
+        public String command;
+
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void prepare() throws Exception {
+            open();
+            send("REGISTER|" + USER);
+            send("JOIN|" + USER + "|" + ROOM);
+            for (int i = 0; i < HISTORY; i++) {
+                send("MESSAGE|" + USER + "|mensagem " + i);
+                send("ROOM_MESSAGE|" + USER + "|" + ROOM + "|mensagem " + i);
+            }
+
+            String text;
+            switch (command) {
+                case "REGISTER":     text = "REGISTER|" + USER; break;
+                case "MESSAGE":      text = "MESSAGE|" + USER + "|olá, mundo"; break;
+                case "HEARTBEAT":    text = "HEARTBEAT|" + USER; break;
+                case "GET_USERS":    text = "GET_USERS"; break;
+                case "GET_MESSAGES": text = "GET_MESSAGES|" + (HISTORY - 10); break;
+                case "GET_REPORT":   text = "GET_REPORT"; break;
+                case "JOIN":         text = "JOIN|" + USER + "|" + ROOM + "|" + (HISTORY - 10); break;
+                case "ROOM_MESSAGE": text = "ROOM_MESSAGE|" + USER + "|" + ROOM + "|olá, sala"; break;
+                default: throw new IllegalArgumentException(command);
+            }
+            payload = text.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Fanout extends Server {
+        @Param({"1", "16", "256"})
+        public int recipients;
+
+        Message message;
+
+        @Setup(Level.Trial)
+        public void prepare() throws Exception {
+            open();
+            // Metade texto, metade binário: as duas codificações entram na conta
+            for (int i = 0; i < recipients; i++) {
+                send("REGISTER|user" + i + (i % 2 == 0 ? "" : "|proto=" + WireProtocol.VERSION));
+            }
+            message = new Message(1, USER, "olá, mundo");
+        }
+    }
+
+    @Benchmark
+    public boolean processPayload(Dispatch state) {
+        return state.server.processPayload(state.payload, 0, state.payload.length, state.address, state.port);
+    }
+
+    // Codificação uma vez por formato e enfileiramento para os N destinatários;
+    // o envio em si fica com as threads do FanOutEngine
+    @Benchmark
+    public void broadcastMessage(Fanout state) {
+        state.server.broadcastMessage(state.message);
+    }
+}
@@ -0,0 +1,148 @@
+package chatudp;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+// Entrega confiável com perda simulada: dois ReliableTransport ligados por um
+// "fio" em memória que descarta cada datagrama com a probabilidade pedida,
+// nos dois sentidos, e entrega o resto depois de delayMs. Cada execução envia
+// MESSAGES mensagens e só termina quando todas chegaram em ordem (falha se
+// faltar ou inverter alguma). Os contadores mostram quantos datagramas de
+// dados e de controle (ACK/NACK) a entrega custou por mensagem, somados nas
+// iterações medidas (divida por Cnt).
+//
+//     ant run -Dbench=ReliableTransport -Djmh.args="-p loss=0.2 -p delayMs=10"
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReliableTransportBench {
+    private static final int MESSAGES = 2000;
+    private static final long DEADLINE_SECONDS = 60;
+    private static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.1", 1);
+    private static final InetSocketAddress RECEIVER = new InetSocketAddress("127.0.0.1", 2);
+
+    @State(Scope.Thread)
+    public static class Link {
+        @Param({"0", "0.05", "0.2"})
+        public double loss;
+
+        // Atraso em cada sentido (o RTT é o dobro)
+        @Param({"0", "10"})
+        public long delayMs;
+
+        ReliableTransport sender;
+        ReliableTransport receiver;
+        final DelayQueue<Datagram> wire = new DelayQueue<>();
+        final AtomicLong dataPackets = new AtomicLong();
+        final AtomicLong controlPackets = new AtomicLong();
+        Thread carrier;
+        Random random;
+        volatile CountDownLatch done;
+        volatile int nextExpected;
+        volatile boolean outOfOrder;
+
+        record Datagram(InetSocketAddress from, InetSocketAddress to, byte[] data, long due) implements Delayed {
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(due, ((Datagram) other).due);
+            }
+        }
+
+        // Cada transporte é criado de novo por execução: sessões e janelas zeradas
+        @Setup(Level.Invocation)
+        public void open() {
+            random = new Random(42);
+            nextExpected = 0;
+            outOfOrder = false;
+            dataPackets.set(0);
+            controlPackets.set(0);
+            done = new CountDownLatch(MESSAGES);
+            sender = new ReliableTransport((data, length, peer) -> carry(SENDER, peer, data, length),
+                    (data, offset, length, peer) -> { });
+            receiver = new ReliableTransport((data, length, peer) -> carry(RECEIVER, peer, data, length),
+                    this::deliver);
+            // Uma thread entrega os datagramas: chamar onPacket do outro lado
+            // dentro do envio travaria os dois timers um no outro
+            carrier = new Thread(this::carryLoop, "bench-wire");
+            carrier.setDaemon(true);
+            carrier.start();
+        }
+
+        private void carry(InetSocketAddress from, InetSocketAddress to, byte[] data, int length) {
+            (from == SENDER ? dataPackets : controlPackets).incrementAndGet();
+            synchronized (random) {
+                if (random.nextDouble() < loss) {
+                    return;
+                }
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(data, 0, copy, 0, length);
+            wire.add(new Datagram(from, to, copy, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs)));
+        }
+
+        private void carryLoop() {
+            try {
+                while (true) {
+                    Datagram d = wire.take();
+                    ReliableTransport target = d.to() == RECEIVER ? receiver : sender;
+                    target.onPacket(d.data(), 0, d.data().length, d.from());
+                }
+            } catch (InterruptedException e) {
+                // Fim da execução
+            }
+        }
+
+        private void deliver(byte[] data, int offset, int length, InetSocketAddress peer) {
+            int value = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+            if (value != (nextExpected & 0xFFFF)) {
+                outOfOrder = true;
+            }
+            nextExpected++;
+            done.countDown();
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            carrier.interrupt();
+            sender.shutdown();
+            receiver.shutdown();
+            wire.clear();
+        }
+    }
+
+    // Datagramas por mensagem entregue, somados ao relatório do JMH
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cost {
+        public double dataPerMessage;
+        public double controlPerMessage;
+    }
+
+    @Benchmark
+    public void deliverAll(Link link, Cost cost) throws InterruptedException {
+        for (int i = 0; i < MESSAGES; i++) {
+            link.sender.send(RECEIVER, new byte[] { (byte) (i >>> 8), (byte) i });
+        }
+        if (!link.done.await(DEADLINE_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Faltaram " + link.done.getCount() + " mensagens");
+        }
+        if (link.outOfOrder) {
+            throw new IllegalStateException("Entrega fora de ordem");
+        }
+        cost.dataPerMessage = (double) link.dataPackets.get() / MESSAGES;
+        cost.controlPerMessage = (double) link.controlPackets.get() / MESSAGES;
+    }
+}
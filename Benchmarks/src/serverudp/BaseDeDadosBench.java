@@ -0,0 +1,37 @@
+package serverudp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Leituras do histórico do ServerUDP conforme ele cresce: a resposta completa
+// (le, formato antigo) contra o delta das 10 últimas que os clientes novos pedem
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BaseDeDadosBench {
+    @Param({"10", "100", "1000", "10000"})
+    public int tamanho;
+
+    private BaseDeDados bd;
+
+    @Setup(Level.Trial)
+    public void preenche() {
+        bd = new BaseDeDados();
+        for (int i = 0; i < tamanho; i++) {
+            bd.insere("(USUARIO" + (i % 8) + "): MENSAGEM NUMERO " + i);
+        }
+    }
+
+    @Benchmark
+    public String le() {
+        return bd.le();
+    }
+
+    @Benchmark
+    public String delta() {
+        return bd.delta(Math.max(0, tamanho - 10));
+    }
+}
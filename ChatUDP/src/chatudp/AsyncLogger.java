@@ -0,0 +1,258 @@
+package chatudp;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Log assíncrono do servidor: quem registra só preenche um registro de
+// tamanho fixo (nível, instante, modelo e até três argumentos) num anel
+// pré-alocado e segue; uma thread de fundo monta o texto e escreve em lotes.
+// Com o anel cheio o registro é descartado e contado em getDropped(), em vez
+// de segurar a thread do pacote esperando o console.
+//
+// Os modelos usam "{}" no lugar de cada argumento, que só é convertido em
+// texto na thread de fundo: passe valores imutáveis (String, números).
+// WARN e ERROR vão para System.err, o resto para System.out.
+//
+// -Dchat.logger.level=DEBUG|INFO|WARN|ERROR|OFF (padrão INFO)
+// -Dchat.logger.buffer=N registros no anel (arredondado para potência de dois)
+final class AsyncLogger {
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    // Avisos de sobrecarga (filas cheias) saem no máximo 1 a cada OVERLOAD_SAMPLE;
+    // o total fica nas métricas
+    static final int OVERLOAD_SAMPLE = 100;
+    private static final int DEFAULT_CAPACITY = 8192;
+    // Registros por escrita no console
+    private static final int BATCH = 512;
+    // Espera da thread de fundo quando o anel está vazio
+    private static final long IDLE_NANOS = 1_000_000;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static AsyncLogger shared;
+
+    private final Level threshold;
+    private final Entry[] ring;
+    private final int mask;
+    // Próxima posição a reservar (produtores) e a consumir (thread de fundo)
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    // Até onde o texto já saiu no console (flush espera por ele)
+    private volatile long written;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+
+    // Preenchido pelo produtor; o consumidor só lê depois de ver sequence
+    // igual à posição esperada (a escrita volátil publica os outros campos)
+    private static final class Entry {
+        volatile long sequence = -1;
+        long millis;
+        Level level;
+        String template;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        // Chamadas omitidas pela amostragem antes desta
+        long skipped;
+    }
+
+    // Amostragem de um evento de alta frequência: só 1 a cada "every"
+    // chamadas vira registro, e ele informa quantas foram omitidas
+    final class Sampled {
+        private final Level level;
+        private final int every;
+        private final AtomicLong calls = new AtomicLong();
+
+        private Sampled(Level level, int every) {
+            this.level = level;
+            this.every = Math.max(1, every);
+        }
+
+        public void log(String template, Object arg0, Object arg1, Object arg2) {
+            if (!isEnabled(level)) {
+                return;
+            }
+            long call = calls.getAndIncrement();
+            if (call % every == 0) {
+                append(level, template, arg0, arg1, arg2, call == 0 ? 0 : every - 1);
+            }
+        }
+
+        public void log(String template, Object arg0, Object arg1) {
+            log(template, arg0, arg1, null);
+        }
+    }
+
+    AsyncLogger(Level threshold, int capacity) {
+        this.threshold = threshold;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+        }
+        mask = size - 1;
+        writer = new Thread(this::drain, "chat-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Instância do processo, criada na primeira chamada; o que estiver no
+    // anel no desligamento da JVM ainda é escrito
+    static synchronized AsyncLogger get() {
+        if (shared == null) {
+            Level level = Level.valueOf(System.getProperty("chat.logger.level", "INFO").toUpperCase());
+            shared = new AsyncLogger(level, Integer.getInteger("chat.logger.buffer", DEFAULT_CAPACITY));
+            AsyncLogger logger = shared;
+            Runtime.getRuntime().addShutdownHook(new Thread(logger::flush, "chat-logger-flush"));
+        }
+        return shared;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0 && level != Level.OFF;
+    }
+
+    public Sampled sampled(Level level, int every) {
+        return new Sampled(level, every);
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public void debug(String template, Object arg0) {
+        log(Level.DEBUG, template, arg0, null, null);
+    }
+
+    public void info(String template) {
+        log(Level.INFO, template, null, null, null);
+    }
+
+    public void info(String template, Object arg0) {
+        log(Level.INFO, template, arg0, null, null);
+    }
+
+    public void info(String template, Object arg0, Object arg1) {
+        log(Level.INFO, template, arg0, arg1, null);
+    }
+
+    public void info(String template, Object arg0, Object arg1, Object arg2) {
+        log(Level.INFO, template, arg0, arg1, arg2);
+    }
+
+    public void warn(String template) {
+        log(Level.WARN, template, null, null, null);
+    }
+
+    public void warn(String template, Object arg0) {
+        log(Level.WARN, template, arg0, null, null);
+    }
+
+    public void warn(String template, Object arg0, Object arg1) {
+        log(Level.WARN, template, arg0, arg1, null);
+    }
+
+    public void error(String template, Object arg0) {
+        log(Level.ERROR, template, arg0, null, null);
+    }
+
+    public void error(String template, Object arg0, Object arg1) {
+        log(Level.ERROR, template, arg0, arg1, null);
+    }
+
+    public void log(Level level, String template, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            append(level, template, arg0, arg1, arg2, 0);
+        }
+    }
+
+    private void append(Level level, String template, Object arg0, Object arg1, Object arg2, long skipped) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Entry record = ring[(int) seq & mask];
+        record.millis = System.currentTimeMillis();
+        record.level = level;
+        record.template = template;
+        record.arg0 = arg0;
+        record.arg1 = arg1;
+        record.arg2 = arg2;
+        record.skipped = skipped;
+        record.sequence = seq;
+    }
+
+    private void drain() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while (true) {
+            long next = consumed;
+            int count = 0;
+            Entry record;
+            while (count < BATCH && (record = ring[(int) next & mask]).sequence == next) {
+                format(record, record.level.compareTo(Level.WARN) >= 0 ? err : out);
+                // Solta os argumentos para o coletor
+                record.arg0 = record.arg1 = record.arg2 = null;
+                record.template = null;
+                next++;
+                count++;
+            }
+            if (count > 0) {
+                consumed = next;
+                write(System.out, out);
+                write(System.err, err);
+                written = next;
+                continue;
+            }
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    private static void format(Entry record, StringBuilder text) {
+        TIME.formatTo(Instant.ofEpochMilli(record.millis), text);
+        text.append(' ').append(record.level).append(' ');
+        String template = record.template;
+        Object[] args = { record.arg0, record.arg1, record.arg2 };
+        int used = 0;
+        int from = 0;
+        int at;
+        while (used < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            text.append(template, from, at).append(args[used++]);
+            from = at + 2;
+        }
+        text.append(template, from, template.length());
+        if (record.skipped > 0) {
+            text.append(" (+").append(record.skipped).append(" omitidos)");
+        }
+        text.append(System.lineSeparator());
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (text.length() == 0) {
+            return;
+        }
+        stream.print(text);
+        stream.flush();
+        text.setLength(0);
+    }
+
+    // Espera a thread de fundo escrever o que já foi registrado (até 2 s)
+    public void flush() {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + 2_000_000_000L;
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+}
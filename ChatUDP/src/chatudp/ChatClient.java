@@ -9,18 +9,68 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
 public class ChatClient extends JFrame {
     private static final String SERVER_HOST = "localhost";
-    private static final int SERVER_PORT = 8888;
+    // -Dchat.port escolhe o nó do cluster ao qual o cliente se conecta
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 8888);
+    // Maior datagrama UDP possível; o histórico chega em lotes de até este tamanho
+    private static final int RECEIVE_BUFFER = 65507;
+    private static final int MAX_HISTORY_RETRIES = 3;
+    // Sem página do histórico (ou do roster) neste prazo, o resto se perdeu
+    private static final int HISTORY_TIMEOUT_MS = 3000;
+    private static final int MAX_PENDING_DELTAS = 64;
     
     private DatagramSocket socket;
     private InetAddress serverAddress;
+    private InetSocketAddress serverEndpoint;
+    // Camada confiável opcional (-Dchat.reliable=true)
+    private transient ReliableTransport reliable;
+    // Remonta respostas grandes que o servidor manda em fragmentos
+    private final transient Reassembler reassembler = new Reassembler();
     private String username;
     private boolean connected = false;
     
+    // Última sequência de mensagem recebida; usada para pedir só o que faltou
+    private long lastSeq = 0;
+    
+    // Versão do protocolo binário negociada no REGISTER (0 = texto)
+    private volatile int protocolVersion = 0;
+    private int nextRequestId = 1;
+    
+    // Controle das páginas do histórico em lotes
+    private int expectedPage = 0;
+    private boolean historyGap = false;
+    private int historyRetries = 0;
+    // Criado no primeiro pedido; reiniciado a cada página e parado no fim
+    private transient javax.swing.Timer historyTimer;
+    
+    // Roster versionado (v2): snapshot inicial e depois só deltas.
+    // -1 = ainda sem snapshot; deltas que chegam durante o snapshot ficam pendentes.
+    private long rosterVersion = -1;
+    private boolean rosterLoading = false;
+    private int expectedRosterPage = 0;
+    private boolean rosterGap = false;
+    // Repete o GET_ROSTER se o snapshot não terminar no prazo
+    private transient javax.swing.Timer rosterTimer;
+    private final transient Map<String, Boolean> rosterStaging = new LinkedHashMap<>();
+    private final transient List<PresenceDelta> pendingDeltas = new ArrayList<>();
+    // Posição de cada usuário em userListModel, para atualizar sem limpar a lista
+    private final transient Map<String, Integer> userIndex = new HashMap<>();
+    
+    // Salas em que o usuário entrou e a última seq recebida de cada uma
+    // (acessado só na thread do Swing)
+    private final transient Map<String, Long> roomSeq = new LinkedHashMap<>();
+    
     // Componentes da interface
     private JTextField usernameField;
     private JButton connectButton;
@@ -41,6 +91,12 @@ public class ChatClient extends JFrame {
         try {
             socket = new DatagramSocket();
             serverAddress = InetAddress.getByName(SERVER_HOST);
+            serverEndpoint = new InetSocketAddress(serverAddress, SERVER_PORT);
+            if (Boolean.getBoolean("chat.reliable")) {
+                reliable = new ReliableTransport(
+                    (data, length, peer) -> socket.send(new DatagramPacket(data, length, peer)),
+                    (data, offset, length, peer) -> handleIncoming(data, offset, length));
+            }
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, 
                 "Erro inicializando cliente: " + e.getMessage(), 
@@ -187,10 +243,21 @@ public class ChatClient extends JFrame {
             return;
         }
         
+        // Ao reconectar com o mesmo nome mantém o chat e pede apenas o que faltou
+        if (!name.equals(username)) {
+            chatArea.setText("");
+            lastSeq = 0;
+        }
         username = name;
         
-        // Envia registro para o servidor
-        sendToServer("REGISTER|" + username);
+        // Envia registro para o servidor, oferecendo o protocolo binário
+        // (-Dchat.binary=false mantém o protocolo texto, para comparação)
+        protocolVersion = 0;
+        if (Boolean.parseBoolean(System.getProperty("chat.binary", "true"))) {
+            sendToServer("REGISTER|" + username + "|proto=" + WireProtocol.VERSION);
+        } else {
+            sendToServer("REGISTER|" + username);
+        }
         
         connectButton.setEnabled(false);
         usernameField.setEnabled(false);
@@ -205,11 +272,24 @@ public class ChatClient extends JFrame {
         
         setTitle("Chat UDP - " + username);
         
-        // Solicita histórico de mensagens
-        sendToServer("GET_MESSAGES");
+        // Solicita histórico de mensagens (incremental se já houver mensagens)
+        historyRetries = 0;
+        requestHistory();
         
-        // Solicita lista de usuários
-        sendToServer("GET_USERS");
+        // Solicita lista de usuários: snapshot versionado se o servidor
+        // envia deltas de presença, senão a lista completa
+        if (protocolVersion >= WireProtocol.PRESENCE_VERSION) {
+            requestRoster();
+        } else if (isBinary()) {
+            sendFrame(newFrame(WireProtocol.GET_USERS));
+        } else {
+            sendToServer("GET_USERS");
+        }
+        
+        // Volta às salas, pedindo só o que faltou de cada uma
+        for (Map.Entry<String, Long> room : roomSeq.entrySet()) {
+            joinRoom(room.getKey(), room.getValue());
+        }
         
         // Inicia heartbeat
         startHeartbeat();
@@ -220,24 +300,85 @@ public class ChatClient extends JFrame {
         appendToChat("=== Conectado ao chat! ===");
     }
     
+    private void requestHistory() {
+        expectedPage = 0;
+        historyGap = false;
+        if (historyTimer == null) {
+            historyTimer = new javax.swing.Timer(HISTORY_TIMEOUT_MS, e -> onHistoryTimeout());
+            historyTimer.setRepeats(false);
+        }
+        historyTimer.restart();
+        if (isBinary()) {
+            sendFrame(newFrame(WireProtocol.GET_MESSAGES).putLong(lastSeq).putLong(RECEIVE_BUFFER));
+        } else {
+            sendToServer("GET_MESSAGES|" + lastSeq + "|" + RECEIVE_BUFFER);
+        }
+    }
+    
     private void sendMessage() {
         if (!connected) return;
         
         String message = messageField.getText().trim();
         if (message.isEmpty()) return;
         
-        sendToServer("MESSAGE|" + username + "|" + message);
+        // /join <sala>, /leave <sala> e #<sala> <texto> para as salas
+        if (message.startsWith("/join ")) {
+            String room = message.substring(6).trim();
+            joinRoom(room, roomSeq.getOrDefault(room, 0L));
+        } else if (message.startsWith("/leave ")) {
+            leaveRoom(message.substring(7).trim());
+        } else if (message.startsWith("#") && message.indexOf(' ') > 1) {
+            int space = message.indexOf(' ');
+            sendRoomMessage(message.substring(1, space), message.substring(space + 1).trim());
+        } else if (isBinary()) {
+            sendFrame(newFrame(WireProtocol.MESSAGE).putString(username).putString(message));
+        } else {
+            sendToServer("MESSAGE|" + username + "|" + message);
+        }
         messageField.setText("");
     }
     
+    private void joinRoom(String room, long since) {
+        if (isBinary()) {
+            sendFrame(newFrame(WireProtocol.JOIN).putString(username).putString(room).putLong(since));
+        } else {
+            sendToServer("JOIN|" + username + "|" + room + "|" + since);
+        }
+    }
+    
+    private void leaveRoom(String room) {
+        roomSeq.remove(room);
+        if (isBinary()) {
+            sendFrame(newFrame(WireProtocol.LEAVE).putString(username).putString(room));
+        } else {
+            sendToServer("LEAVE|" + username + "|" + room);
+        }
+    }
+    
+    private void sendRoomMessage(String room, String text) {
+        if (isBinary()) {
+            sendFrame(newFrame(WireProtocol.ROOM_MESSAGE).putString(username).putString(room).putString(text));
+        } else {
+            sendToServer("ROOM_MESSAGE|" + username + "|" + room + "|" + text);
+        }
+    }
+    
     private void requestReport() {
         if (!connected) return;
-        sendToServer("GET_REPORT");
+        if (isBinary()) {
+            sendFrame(newFrame(WireProtocol.GET_REPORT));
+        } else {
+            sendToServer("GET_REPORT");
+        }
     }
     
     private void disconnect() {
         if (connected) {
-            sendToServer("DISCONNECT|" + username);
+            if (isBinary()) {
+                sendFrame(newFrame(WireProtocol.DISCONNECT).putString(username));
+            } else {
+                sendToServer("DISCONNECT|" + username);
+            }
             connected = false;
         }
         
@@ -251,15 +392,51 @@ public class ChatClient extends JFrame {
         
         connectButton.setEnabled(true);
         usernameField.setEnabled(true);
-        chatArea.setText("");
-        userListModel.clear();
+        clearUserList();
+        rosterVersion = -1;
+        rosterLoading = false;
+        pendingDeltas.clear();
+        stopHistoryTimer();
+        if (rosterTimer != null) {
+            rosterTimer.stop();
+        }
         
         setTitle("Chat UDP - Cliente");
     }
     
     private void sendToServer(String message) {
+        sendBytes(message.getBytes());
+    }
+    
+    private boolean isBinary() {
+        return protocolVersion > 0;
+    }
+    
+    private synchronized WireProtocol.Writer newFrame(byte opcode) {
+        return new WireProtocol.Writer(opcode, nextRequestId++);
+    }
+    
+    private void sendFrame(WireProtocol.Writer frame) {
+        sendBytes(frame.toByteArray());
+    }
+    
+    // Com servidor que remonta, mensagens grandes vão em fragmentos
+    private void sendBytes(byte[] data) {
+        if (protocolVersion >= WireProtocol.FRAGMENT_VERSION && data.length > Fragmenter.fragmentSize()) {
+            for (byte[] fragment : Fragmenter.split(data, Fragmenter.fragmentSize())) {
+                sendDatagram(fragment);
+            }
+        } else {
+            sendDatagram(data);
+        }
+    }
+    
+    private void sendDatagram(byte[] data) {
+        if (reliable != null) {
+            reliable.send(serverEndpoint, data);
+            return;
+        }
         try {
-            byte[] data = message.getBytes();
             DatagramPacket packet = new DatagramPacket(
                 data, data.length, serverAddress, SERVER_PORT);
             socket.send(packet);
@@ -270,15 +447,19 @@ public class ChatClient extends JFrame {
     
     private void startMessageReceiver() {
         Thread receiver = new Thread(() -> {
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[RECEIVE_BUFFER];
             
             while (!socket.isClosed()) {
                 try {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                     socket.receive(packet);
                     
-                    String message = new String(packet.getData(), 0, packet.getLength());
-                    SwingUtilities.invokeLater(() -> processServerMessage(message));
+                    if (reliable != null && ReliableTransport.isEnvelope(packet.getData(), 0, packet.getLength())) {
+                        reliable.onPacket(packet.getData(), 0, packet.getLength(),
+                            (InetSocketAddress) packet.getSocketAddress());
+                    } else {
+                        handleIncoming(packet.getData(), 0, packet.getLength());
+                    }
                     
                 } catch (IOException e) {
                     if (!socket.isClosed()) {
@@ -293,39 +474,87 @@ public class ChatClient extends JFrame {
         receiver.start();
     }
     
-    private void processServerMessage(String message) {
+    // Chamado na thread de recepção; o processamento segue na thread do Swing
+    private void handleIncoming(byte[] data, int offset, int length) {
+        if (Fragmenter.isFragment(data, offset, length)) {
+            byte[] whole = reassembler.accept(data, offset, length, serverEndpoint);
+            if (whole != null) {
+                handleIncoming(whole, 0, whole.length);
+            }
+        } else if (WireProtocol.isFrame(data, offset, length)) {
+            // Cópia porque o buffer de recepção é reutilizado
+            ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOfRange(data, offset, offset + length));
+            SwingUtilities.invokeLater(() -> processServerFrame(frame));
+        } else {
+            String message = new String(data, offset, length);
+            SwingUtilities.invokeLater(() -> processServerMessage(message));
+        }
+    }
+    
+    // Package-private para os benchmarks; roda na thread do Swing
+    void processServerMessage(String message) {
+        if (message.startsWith("HISTORY_BATCH|")) {
+            processHistoryBatch(message);
+            return;
+        }
+        if (message.startsWith("ROOM_HISTORY_BATCH|")) {
+            processRoomHistoryBatch(message);
+            return;
+        }
+        if (message.startsWith("ROOM_MESSAGE|")) {
+            // ROOM_MESSAGE|<sala>|<usuário>|<texto>|<timestamp>|<seq>
+            int roomEnd = message.indexOf('|', 13);
+            if (roomEnd > 0) {
+                appendHistoryRecord(message.substring(13, roomEnd), message.substring(roomEnd + 1));
+            }
+            return;
+        }
+        if (message.startsWith("NEW_MESSAGE|") || message.startsWith("HISTORY_MESSAGE|")) {
+            // <comando>|<usuário>|<texto>|<timestamp>|<seq>
+            appendHistoryRecord(null, message.substring(message.indexOf('|') + 1));
+            return;
+        }
+        
         String[] parts = message.split("\\|");
         String command = parts[0];
         
         switch (command) {
             case "REGISTER_OK":
+                // REGISTER_OK|<versão> confirma o protocolo binário
+                if (parts.length > 1) {
+                    protocolVersion = Integer.parseInt(parts[1]);
+                }
                 onConnected();
                 break;
                 
-            case "NEW_MESSAGE":
-                if (parts.length >= 4) {
-                    String sender = parts[1];
-                    String text = parts[2];
-                    String timestamp = parts[3];
-                    appendToChat("[" + timestamp + "] " + sender + ": " + text);
+            case "HISTORY_END":
+                if (parts.length >= 2) {
+                    updateLastSeq(parts[1]);
                 }
+                stopHistoryTimer();
+                appendToChat("=== Fim do histórico ===");
                 break;
                 
-            case "HISTORY_MESSAGE":
-                if (parts.length >= 4) {
-                    String sender = parts[1];
-                    String text = parts[2];
-                    String timestamp = parts[3];
-                    appendToChat("[" + timestamp + "] " + sender + ": " + text);
+            case "USER_LIST":
+                clearUserList();
+                for (int i = 1; i < parts.length; i++) {
+                    String[] userInfo = parts[i].split(":");
+                    if (userInfo.length == 2) {
+                        addUserEntry(userInfo[0], userInfo[1].equals("online"));
+                    }
                 }
                 break;
                 
-            case "HISTORY_END":
-                appendToChat("=== Fim do histórico ===");
+            case "ROOM_JOINED":
+                if (parts.length >= 4) {
+                    onRoomJoined(parts[1], Integer.parseInt(parts[2]));
+                }
                 break;
                 
-            case "USER_LIST":
-                updateUserList(parts);
+            case "ROOM_LEFT":
+                if (parts.length >= 2) {
+                    appendToChat("=== Saiu da sala #" + parts[1] + " ===");
+                }
                 break;
                 
             case "REPORT":
@@ -334,39 +563,429 @@ public class ChatClient extends JFrame {
                 
             case "ERROR":
                 if (parts.length > 1) {
-                    JOptionPane.showMessageDialog(this, 
-                        parts[1], "Erro do Servidor", JOptionPane.ERROR_MESSAGE);
-                    disconnect();
+                    showServerError(parts[1]);
                 }
                 break;
         }
     }
     
-    private void updateUserList(String[] parts) {
-        userListModel.clear();
-        for (int i = 1; i < parts.length; i++) {
-            String[] userInfo = parts[i].split(":");
-            if (userInfo.length == 2) {
-                String user = userInfo[0];
-                String status = userInfo[1];
-                userListModel.addElement(user + (status.equals("online") ? " (online)" : " (offline)"));
+    // Quadros do protocolo binário: campos lidos em sequência direto do buffer
+    private void processServerFrame(ByteBuffer frame) {
+        byte opcode = WireProtocol.opcode(frame);
+        int fields = WireProtocol.fieldCount(frame);
+        WireProtocol.skipHeader(frame);
+        
+        switch (opcode) {
+            case WireProtocol.REGISTER_OK:
+                onConnected();
+                break;
+                
+            case WireProtocol.NEW_MESSAGE:
+            case WireProtocol.HISTORY_MESSAGE:
+                appendChatRecord(frame);
+                break;
+                
+            case WireProtocol.HISTORY_END:
+                lastSeq = Math.max(lastSeq, WireProtocol.readLong(frame));
+                stopHistoryTimer();
+                appendToChat("=== Fim do histórico ===");
+                break;
+                
+            case WireProtocol.HISTORY_BATCH: {
+                int page = (int) WireProtocol.readLong(frame);
+                boolean more = WireProtocol.readLong(frame) == 1;
+                long pageLastSeq = WireProtocol.readLong(frame);
+                boolean accepted = beginHistoryPage(page);
+                if (accepted) {
+                    for (int i = 3; i + 4 <= fields; i += 4) {
+                        appendChatRecord(frame);
+                    }
+                }
+                endHistoryPage(more, pageLastSeq, accepted);
+                break;
+            }
+                
+            case WireProtocol.USER_LIST:
+                clearUserList();
+                for (int i = 0; i + 2 <= fields; i += 2) {
+                    String user = WireProtocol.readString(frame);
+                    addUserEntry(user, WireProtocol.readLong(frame) == 1);
+                }
+                break;
+                
+            case WireProtocol.USER_JOINED:
+            case WireProtocol.USER_LEFT:
+            case WireProtocol.USER_STATUS: {
+                PresenceDelta delta = new PresenceDelta(WireProtocol.readLong(frame));
+                for (int i = 1; i + 2 <= fields; i += 2) {
+                    String user = WireProtocol.readString(frame);
+                    delta.add(user, WireProtocol.readLong(frame) == 1);
+                }
+                onPresenceDelta(delta);
+                break;
+            }
+                
+            case WireProtocol.USER_SNAPSHOT: {
+                long version = WireProtocol.readLong(frame);
+                int page = (int) WireProtocol.readLong(frame);
+                boolean more = WireProtocol.readLong(frame) == 1;
+                boolean accepted = beginRosterPage(page);
+                for (int i = 3; i + 2 <= fields; i += 2) {
+                    String user = WireProtocol.readString(frame);
+                    boolean online = WireProtocol.readLong(frame) == 1;
+                    if (accepted) {
+                        rosterStaging.put(user, online);
+                    }
+                }
+                if (!more) {
+                    endRoster(version);
+                }
+                break;
+            }
+                
+            case WireProtocol.ROOM_JOINED: {
+                String room = WireProtocol.readString(frame);
+                onRoomJoined(room, (int) WireProtocol.readLong(frame));
+                break;
+            }
+                
+            case WireProtocol.ROOM_LEFT:
+                appendToChat("=== Saiu da sala #" + WireProtocol.readString(frame) + " ===");
+                break;
+                
+            case WireProtocol.ROOM_NEW_MESSAGE:
+                appendChatRecord(WireProtocol.readString(frame), frame);
+                break;
+                
+            case WireProtocol.ROOM_HISTORY_BATCH: {
+                // O histórico da sala é melhor esforço: sem controle de páginas
+                String room = WireProtocol.readString(frame);
+                WireProtocol.readLong(frame);
+                WireProtocol.readLong(frame);
+                WireProtocol.readLong(frame);
+                for (int i = 4; i + 4 <= fields; i += 4) {
+                    appendChatRecord(room, frame);
+                }
+                break;
+            }
+                
+            case WireProtocol.REPORT: {
+                StringBuilder report = new StringBuilder();
+                for (int i = 0; i + 2 <= fields; i += 2) {
+                    String user = WireProtocol.readString(frame);
+                    appendReportLine(report, user, Long.toString(WireProtocol.readLong(frame)));
+                }
+                showReport(report);
+                break;
+            }
+                
+            case WireProtocol.ERROR:
+                showServerError(WireProtocol.readString(frame));
+                break;
+        }
+    }
+    
+    // Registro binário: usuário, texto, timestamp, seq
+    private void appendChatRecord(ByteBuffer frame) {
+        appendChatRecord(null, frame);
+    }
+    
+    private void appendChatRecord(String room, ByteBuffer frame) {
+        String sender = WireProtocol.readString(frame);
+        String text = WireProtocol.readString(frame);
+        String timestamp = WireProtocol.readString(frame);
+        showChatLine(room, timestamp, sender, text, WireProtocol.readLong(frame));
+    }
+    
+    // Mensagens de sala aparecem com o nome da sala e avançam a seq da sala
+    private void showChatLine(String room, String timestamp, String sender, String text, long seq) {
+        if (room == null) {
+            lastSeq = Math.max(lastSeq, seq);
+            appendToChat("[" + timestamp + "] " + sender + ": " + text);
+        } else {
+            roomSeq.merge(room, seq, Math::max);
+            appendToChat("[" + timestamp + "] #" + room + " " + sender + ": " + text);
+        }
+    }
+    
+    private void onRoomJoined(String room, int members) {
+        roomSeq.putIfAbsent(room, 0L);
+        appendToChat("=== Entrou na sala #" + room + " (" + members + " inscritos) ===");
+    }
+    
+    // ROOM_HISTORY_BATCH|<sala>|<página>|<mais>|<última seq>, seguido dos registros
+    private void processRoomHistoryBatch(String message) {
+        String[] lines = message.split("\n");
+        String[] header = lines[0].split("\\|");
+        if (header.length < 5) return;
+        
+        for (int i = 1; i < lines.length; i++) {
+            appendHistoryRecord(header[1], lines[i]);
+        }
+    }
+    
+    private void showServerError(String error) {
+        JOptionPane.showMessageDialog(this, 
+            error, "Erro do Servidor", JOptionPane.ERROR_MESSAGE);
+        disconnect();
+    }
+    
+    // Uma página fora de ordem indica perda: as páginas seguintes são ignoradas
+    // e, ao fim, o histórico é pedido de novo a partir da última seq contígua
+    private void processHistoryBatch(String message) {
+        String[] lines = message.split("\n");
+        String[] header = lines[0].split("\\|");
+        if (header.length < 4) return;
+        
+        int page = Integer.parseInt(header[1]);
+        boolean more = header[2].equals("1");
+        
+        boolean accepted = beginHistoryPage(page);
+        if (accepted) {
+            for (int i = 1; i < lines.length; i++) {
+                appendHistoryRecord(null, lines[i]);
+            }
+        }
+        endHistoryPage(more, Long.parseLong(header[3]), accepted);
+    }
+    
+    private boolean beginHistoryPage(int page) {
+        // Chegou página: o prazo conta de novo a partir desta
+        if (historyTimer != null && historyTimer.isRunning()) {
+            historyTimer.restart();
+        }
+        if (page == 0) {
+            expectedPage = 0;
+            historyGap = false;
+        }
+        
+        if (historyGap || page != expectedPage) {
+            historyGap = true;
+            return false;
+        }
+        expectedPage++;
+        return true;
+    }
+    
+    private void endHistoryPage(boolean more, long pageLastSeq, boolean accepted) {
+        if (!more && accepted) {
+            lastSeq = Math.max(lastSeq, pageLastSeq);
+        }
+        
+        if (!more) {
+            if (historyGap && historyRetries++ < MAX_HISTORY_RETRIES) {
+                appendToChat("=== Páginas do histórico perdidas, solicitando novamente ===");
+                requestHistory();
+            } else {
+                historyRetries = 0;
+                stopHistoryTimer();
+                appendToChat("=== Fim do histórico ===");
+            }
+        }
+    }
+    
+    // A última página (sem "mais") nunca chegou: pede de novo a partir da
+    // última seq contígua, já que as páginas aceitas avançaram lastSeq
+    private void onHistoryTimeout() {
+        if (!connected) {
+            return;
+        }
+        if (historyRetries++ < MAX_HISTORY_RETRIES) {
+            appendToChat("=== Histórico incompleto, solicitando a partir da seq " + lastSeq + " ===");
+            requestHistory();
+        } else {
+            historyRetries = 0;
+            appendToChat("=== Servidor não completou o histórico ===");
+        }
+    }
+    
+    private void stopHistoryTimer() {
+        if (historyTimer != null) {
+            historyTimer.stop();
+        }
+    }
+    
+    // Registro: usuário|texto|timestamp|seq (o texto pode conter '|')
+    private void appendHistoryRecord(String room, String record) {
+        int first = record.indexOf('|');
+        int last = record.lastIndexOf('|');
+        int beforeLast = record.lastIndexOf('|', last - 1);
+        if (first < 0 || beforeLast <= first) return;
+        
+        String sender = unescape(record.substring(0, first));
+        String text = unescape(record.substring(first + 1, beforeLast));
+        String timestamp = record.substring(beforeLast + 1, last);
+        long seq;
+        try {
+            seq = Long.parseLong(record.substring(last + 1));
+        } catch (NumberFormatException e) {
+            // Servidor antigo sem número de sequência
+            seq = 0;
+        }
+        showChatLine(room, timestamp, sender, text, seq);
+    }
+    
+    // Desfaz o escape do servidor (Message.toTextRecord): \n e \\
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder out = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                out.append(next == 'n' ? '\n' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+    
+    private void updateLastSeq(String seq) {
+        try {
+            lastSeq = Math.max(lastSeq, Long.parseLong(seq));
+        } catch (NumberFormatException e) {
+            // Servidor antigo sem número de sequência
+        }
+    }
+    
+    private void requestRoster() {
+        rosterLoading = true;
+        expectedRosterPage = 0;
+        rosterGap = false;
+        if (rosterTimer == null) {
+            rosterTimer = new javax.swing.Timer(HISTORY_TIMEOUT_MS, e -> onRosterTimeout());
+            rosterTimer.setRepeats(false);
+        }
+        rosterTimer.restart();
+        sendFrame(newFrame(WireProtocol.GET_ROSTER).putLong(RECEIVE_BUFFER));
+    }
+    
+    // Snapshot sem a última página: sem isso os deltas ficariam pendentes
+    // até estourar MAX_PENDING_DELTAS, o que numa sala quieta nunca acontece
+    private void onRosterTimeout() {
+        if (connected && rosterLoading) {
+            requestRoster();
+        }
+    }
+    
+    private boolean beginRosterPage(int page) {
+        if (rosterTimer != null && rosterTimer.isRunning()) {
+            rosterTimer.restart();
+        }
+        if (page == 0) {
+            expectedRosterPage = 0;
+            rosterGap = false;
+            rosterStaging.clear();
+        }
+        
+        if (rosterGap || page != expectedRosterPage) {
+            rosterGap = true;
+            return false;
+        }
+        expectedRosterPage++;
+        return true;
+    }
+    
+    // Última página do snapshot: troca a lista e aplica os deltas mais novos
+    private void endRoster(long version) {
+        if (rosterGap) {
+            requestRoster();
+            return;
+        }
+        
+        clearUserList();
+        for (Map.Entry<String, Boolean> entry : rosterStaging.entrySet()) {
+            addUserEntry(entry.getKey(), entry.getValue());
+        }
+        rosterStaging.clear();
+        rosterVersion = version;
+        rosterLoading = false;
+        if (rosterTimer != null) {
+            rosterTimer.stop();
+        }
+        
+        List<PresenceDelta> pending = new ArrayList<>(pendingDeltas);
+        pendingDeltas.clear();
+        pending.sort((a, b) -> Long.compare(a.version, b.version));
+        for (PresenceDelta delta : pending) {
+            onPresenceDelta(delta);
+        }
+    }
+    
+    // Deltas são aplicados em ordem de versão; um buraco (delta perdido)
+    // faz pedir um snapshot novo
+    private void onPresenceDelta(PresenceDelta delta) {
+        if (rosterLoading) {
+            pendingDeltas.add(delta);
+            // Snapshot provavelmente perdido: pede de novo
+            if (pendingDeltas.size() > MAX_PENDING_DELTAS) {
+                pendingDeltas.clear();
+                requestRoster();
             }
+            return;
+        }
+        // Sem snapshot ainda (ex.: o próprio JOINED antes do REGISTER_OK)
+        if (rosterVersion < 0 || delta.version <= rosterVersion) {
+            return;
+        }
+        if (delta.version != rosterVersion + 1) {
+            pendingDeltas.add(delta);
+            requestRoster();
+            return;
+        }
+        
+        for (int i = 0; i < delta.users.size(); i++) {
+            setUserEntry(delta.users.get(i), delta.online.get(i));
+        }
+        rosterVersion = delta.version;
+    }
+    
+    private void clearUserList() {
+        userListModel.clear();
+        userIndex.clear();
+    }
+    
+    private void addUserEntry(String user, boolean online) {
+        userIndex.put(user, userListModel.size());
+        userListModel.addElement(formatUserEntry(user, online));
+    }
+    
+    private void setUserEntry(String user, boolean online) {
+        Integer index = userIndex.get(user);
+        if (index == null) {
+            addUserEntry(user, online);
+        } else {
+            userListModel.set(index, formatUserEntry(user, online));
         }
     }
     
+    private String formatUserEntry(String user, boolean online) {
+        return user + (online ? " (online)" : " (offline)");
+    }
+    
     private void showReport(String[] parts) {
-        StringBuilder report = new StringBuilder("Relatório de Frequência de Mensagens:\n\n");
+        StringBuilder report = new StringBuilder();
         
         for (int i = 1; i < parts.length; i++) {
             String[] userInfo = parts[i].split(":");
             if (userInfo.length == 2) {
-                String user = userInfo[0];
-                String count = userInfo[1];
-                report.append(user).append(": ").append(count).append(" mensagens\n");
+                appendReportLine(report, userInfo[0], userInfo[1]);
             }
         }
+        showReport(report);
+    }
+    
+    private void appendReportLine(StringBuilder report, String user, String count) {
+        report.append(user).append(": ").append(count).append(" mensagens\n");
+    }
+    
+    private void showReport(StringBuilder lines) {
+        String report = "Relatório de Frequência de Mensagens:\n\n" + lines;
         
-        JTextArea textArea = new JTextArea(report.toString());
+        JTextArea textArea = new JTextArea(report);
         textArea.setEditable(false);
         textArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
         
@@ -383,7 +1002,11 @@ public class ChatClient extends JFrame {
             @Override
             public void run() {
                 if (connected) {
-                    sendToServer("HEARTBEAT|" + username);
+                    if (isBinary()) {
+                        sendFrame(newFrame(WireProtocol.HEARTBEAT).putString(username));
+                    } else {
+                        sendToServer("HEARTBEAT|" + username);
+                    }
                 }
             }
         }, 5000, 5000); // A cada 5 segundos
@@ -407,5 +1030,20 @@ public class ChatClient extends JFrame {
             new ChatClient().setVisible(true);
         });
     }
+    
+    // Mudança de presença recebida do servidor (uma versão do roster)
+    private static class PresenceDelta {
+        final long version;
+        final List<String> users = new ArrayList<>();
+        final List<Boolean> online = new ArrayList<>();
+        
+        PresenceDelta(long version) {
+            this.version = version;
+        }
+        
+        void add(String user, boolean isOnline) {
+            users.add(user);
+            online.add(isOnline);
+        }
+    }
  }
-
@@ -2,290 +2,1252 @@ package chatudp;
 
 import java.io.*;
 import java.net.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-public class ChatServer {
-    private static final int PORT = 8888;
+public final class ChatServer {
+    private static final int DEFAULT_PORT = 8888;
+    // Um fragmento inteiro (Fragmenter) mais os envelopes; mensagens maiores
+    // chegam fragmentadas, então o buffer não limita mais o tamanho da mensagem
+    private static final int BUFFER_SIZE = 2048;
+    private static final int LANE_CAPACITY = 4096;
+    private static final int HISTORY_CAPACITY = 16384;
+    private static final int ROOM_HISTORY_CAPACITY = 256;
+    // Limite do nome da sala, para caber no cabeçalho das páginas do histórico
+    private static final int MAX_ROOM_NAME_BYTES = 32;
+    // Chave da sala global no anel do cluster (nomes de sala nunca são vazios)
+    private static final String GLOBAL_ROOM = "";
+    // Console fora da thread do pacote: ver AsyncLogger
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    // Eventos por mensagem/registro: -Dchat.logger.sample=N escreve 1 a cada N
+    private static final int LOG_SAMPLE = Integer.getInteger("chat.logger.sample", 1);
+    
+    // Modo de recepção: NIO (padrão) ou o DatagramSocket original, para comparação
+    enum IoMode { NIO, SOCKET }
+    
+    private final IoMode ioMode;
+    private final int port;
     private DatagramSocket socket;
+    private DatagramChannel channel;
+    private ShardedIngress ingress;
+    private ScheduledExecutorService shardStats;
     private Map<String, ClientInfo> clients;
-    private List<Message> messageHistory;
+    private MessageRing messageHistory;
     private Map<String, Integer> messageCount;
-    private boolean running;
+    private CommandPipeline pipeline;
+    private FanOutEngine fanOut;
+    private ReliableTransport reliable;
+    private MessageLog messageLog;
+    private HeartbeatWheel heartbeatWheel;
+    // Salas por nome; criadas no primeiro JOIN e descartadas quando ociosas
+    // (ver Room.isIdle) pela varredura periódica
+    private Map<String, Room> rooms;
+    private int roomHistoryCapacity;
+    private long roomIdleMs;
+    private ScheduledExecutorService roomSweeper;
+    // Modo cluster (-Dchat.cluster); null quando o servidor roda sozinho
+    private ClusterLink cluster;
+    // Limites por usuário/endereço aplicados antes do parse (null = desligado)
+    private RateLimiter rateLimiter;
+    // Fragmentação: remontagem do que chega e endereços que aceitam fragmentos
+    private Reassembler reassembler;
+    private int fragmentSize;
+    private Set<InetSocketAddress> fragmentPeers;
+    // Usuários conectados a outros nós, só para a presença
+    private Map<String, ClientInfo> remoteClients;
+    // Métricas (null = desligadas); as referências ficam em campos para o
+    // caminho quente não consultar o registro
+    private Metrics metrics;
+    private LongAdder packetsIn;
+    private LongAdder bytesIn;
+    private LongAdder packetsOut;
+    private LongAdder parseErrors;
+    private LatencyHistogram fanOutSize;
+    private LatencyHistogram fanOutNanos;
+    private Map<String, LatencyHistogram> handlerNanos;
+    // Só 1 em cada timingMask + 1 comandos é cronometrado: cada nanoTime custa
+    // dezenas de ns, o mesmo que um HEARTBEAT inteiro. O contador é sem
+    // sincronização de propósito; com vários workers a amostra só fica menos regular
+    private int timingMask;
+    private int timingTick;
+    // Eventos frequentes vão amostrados para o log
+    private final AsyncLogger.Sampled messageLines = LOG.sampled(AsyncLogger.Level.INFO, LOG_SAMPLE);
+    private final AsyncLogger.Sampled registerLines = LOG.sampled(AsyncLogger.Level.INFO, LOG_SAMPLE);
+    private final AsyncLogger.Sampled queueFullLines = LOG.sampled(AsyncLogger.Level.WARN, AsyncLogger.OVERLOAD_SAMPLE);
+    
+    // Presença versionada: cada mudança incrementa a versão do roster
+    private final Object presenceLock = new Object();
+    private long rosterVersion;
+    // Clientes online que ainda precisam do USER_LIST completo
+    private final AtomicInteger legacyClients = new AtomicInteger();
+    private volatile boolean running;
+    
+    public ChatServer() throws IOException {
+        this(IoMode.valueOf(System.getProperty("chat.io", "nio").toUpperCase()));
+    }
     
-    public ChatServer() throws SocketException {
-        socket = new DatagramSocket(PORT);
+    public ChatServer(IoMode ioMode) throws IOException {
+        this.ioMode = ioMode;
+        this.port = Integer.getInteger("chat.port", DEFAULT_PORT);
+        if (ioMode == IoMode.NIO) {
+            // -Dchat.shards=N abre N sockets na mesma porta com SO_REUSEPORT
+            ingress = new ShardedIngress(port, Integer.getInteger("chat.shards", 1), BUFFER_SIZE);
+            channel = ingress.getPrimaryChannel();
+            // O adaptador do canal continua servindo para os envios
+            socket = channel.socket();
+        } else {
+            socket = new DatagramSocket(port);
+        }
         clients = new ConcurrentHashMap<>();
-        messageHistory = new ArrayList<>();
+        messageHistory = new MessageRing(Integer.getInteger("chat.history", HISTORY_CAPACITY));
         messageCount = new ConcurrentHashMap<>();
+        rooms = new ConcurrentHashMap<>();
+        remoteClients = new ConcurrentHashMap<>();
+        rateLimiter = RateLimiter.fromProperties();
+        reassembler = new Reassembler();
+        fragmentSize = Fragmenter.fragmentSize();
+        fragmentPeers = ConcurrentHashMap.newKeySet();
+        roomHistoryCapacity = Integer.getInteger("chat.room.history", ROOM_HISTORY_CAPACITY);
         running = false;
+        metrics = Metrics.fromProperties();
+        if (metrics != null) {
+            packetsIn = metrics.counter("packets.in");
+            bytesIn = metrics.counter("bytes.in");
+            packetsOut = metrics.counter("packets.out");
+            parseErrors = metrics.counter("errors.parse");
+            fanOutSize = metrics.histogram("fanout.recipients");
+            fanOutNanos = metrics.histogram("fanout.ns");
+            // Só leitura depois daqui: um HashMap simples basta
+            handlerNanos = new HashMap<>();
+            // -Dchat.metrics.sample=N (potência de dois; 1 cronometra todos)
+            timingMask = Integer.highestOneBit(Math.max(1, Integer.getInteger("chat.metrics.sample", 16))) - 1;
+            for (String command : new String[] { "REGISTER", "MESSAGE", "HEARTBEAT", "GET_USERS",
+                    "GET_MESSAGES", "GET_REPORT", "GET_ROSTER", "GET_METRICS", "DISCONNECT",
+                    "JOIN", "LEAVE", "ROOM_MESSAGE" }) {
+                handlerNanos.put(command, metrics.histogram("handler." + command + ".ns"));
+            }
+        }
+        
+        // Persistência: reconstrói histórico e contadores a partir do log
+        // (-Dchat.log=false desliga; ver MessageLog.fromProperties)
+        if (Boolean.parseBoolean(System.getProperty("chat.log", "true"))) {
+            messageLog = MessageLog.fromProperties();
+            messageLog.recover(msg -> {
+                messageHistory.restore(msg);
+                messageCount.merge(msg.getUsername(), 1, Integer::sum);
+            });
+        }
+        
+        // Lanes de processamento (-Dchat.workers=0 processa tudo na thread de recepção)
+        int workers = Integer.getInteger("chat.workers", Runtime.getRuntime().availableProcessors());
+        if (workers > 0) {
+            pipeline = new CommandPipeline(workers, LANE_CAPACITY);
+        }
+        
+        // Camada confiável: usada com os clientes que a iniciarem (-Dchat.reliable=false desliga)
+        if (Boolean.parseBoolean(System.getProperty("chat.reliable", "true"))) {
+            final DatagramSocket out = socket;
+            reliable = new ReliableTransport(
+                (data, length, peer) -> out.send(new DatagramPacket(data, length, peer)),
+                (data, offset, length, peer) ->
+                    processPayload(data, offset, length, peer.getAddress(), peer.getPort()));
+        }
+        
+        // Difusão codificada uma vez e enviada por threads dedicadas
+        int senders = Integer.getInteger("chat.senders", 1);
+        long slowFanOutMs = Long.getLong("chat.fanout.slowMs", 50);
+        fanOut = new FanOutEngine(channel, socket, reliable, senders, LANE_CAPACITY, fragmentSize,
+            (label, recipients, elapsedNanos) -> {
+                if (metrics != null) {
+                    packetsOut.add(recipients);
+                    fanOutSize.record(recipients);
+                    fanOutNanos.record(elapsedNanos);
+                }
+                long elapsedMs = elapsedNanos / 1_000_000;
+                if (elapsedMs >= slowFanOutMs) {
+                    LOG.info("Difusão {} para {} clientes levou {} ms", label, recipients, elapsedMs);
+                }
+            });
         
-        // Thread para verificar clientes offline
+        // Roda de temporização para detectar clientes offline
         startHeartbeatChecker();
+        
+        cluster = ClusterLink.fromProperties(new ClusterEvents());
+        startRoomSweeper();
+        
+        if (metrics != null) {
+            registerGauges();
+            metrics.registerMBean("chatudp:type=Metrics,port=" + port);
+        }
+    }
+    
+    // Valores que os componentes já contam; lidos só na consulta
+    private void registerGauges() {
+        metrics.gauge("logger.dropped", LOG::getDropped);
+        metrics.gauge("clients.registered", () -> clients.size());
+        metrics.gauge("clients.remote", () -> remoteClients.size());
+        metrics.gauge("clients.legacy", legacyClients::get);
+        metrics.gauge("rooms", () -> rooms.size());
+        metrics.gauge("history.size", () -> messageHistory.size());
+        metrics.gauge("history.lastSeq", messageHistory::getLastSequence);
+        metrics.gauge("heartbeat.expired", heartbeatWheel::getExpiredCount);
+        metrics.gauge("fanout.count", fanOut::getFanOuts);
+        metrics.gauge("reassembly.pending", reassembler::getPending);
+        metrics.gauge("reassembly.completed", reassembler::getCompleted);
+        metrics.gauge("reassembly.expired", reassembler::getExpired);
+        metrics.gauge("reassembly.rejected", reassembler::getRejected);
+        if (pipeline != null) {
+            metrics.gauge("pipeline.dropped", pipeline::getDropped);
+        }
+        if (rateLimiter != null) {
+            metrics.gauge("ratelimit.dropped.message", () -> rateLimiter.getDropped(RateLimiter.MESSAGE));
+            metrics.gauge("ratelimit.dropped.history", () -> rateLimiter.getDropped(RateLimiter.HISTORY));
+            metrics.gauge("ratelimit.dropped.control", () -> rateLimiter.getDropped(RateLimiter.CONTROL));
+            metrics.gauge("ratelimit.dropped.fragment", () -> rateLimiter.getDropped(RateLimiter.FRAGMENT));
+            metrics.gauge("ratelimit.dropped.envelope", () -> rateLimiter.getDropped(RateLimiter.ENVELOPE));
+        }
+        if (ingress != null) {
+            metrics.gauge("ingress.dropped", () -> {
+                long dropped = 0;
+                for (int i = 0; i < ingress.getShardCount(); i++) {
+                    dropped += ingress.getDropped(i);
+                }
+                return dropped;
+            });
+        }
     }
     
     public void start() {
         running = true;
-        System.out.println("Servidor iniciado na porta " + PORT);
+        LOG.info("Servidor iniciado na porta {} (modo {})", port, ioMode);
+        if (cluster != null) {
+            cluster.start();
+            LOG.info("Nó {} de um cluster com {} nós", cluster.getSelfId(), cluster.getNodeCount());
+        }
+        LOG.info("Lanes de processamento: {}", pipeline == null ? 0 : pipeline.getLaneCount());
+        
+        if (ioMode == IoMode.NIO) {
+            if (ingress.getShardCount() > 1) {
+                LOG.info("Shards de recepção (SO_REUSEPORT): {}", ingress.getShardCount());
+                startShardStats();
+            }
+            ingress.run(this::processPacket);
+            return;
+        }
         
         while (running) {
             try {
-                byte[] buffer = new byte[1024];
+                byte[] buffer = new byte[BUFFER_SIZE];
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 socket.receive(packet);
                 
-                String received = new String(packet.getData(), 0, packet.getLength());
-                processMessage(received, packet.getAddress(), packet.getPort());
+                processPacket(packet.getData(), packet.getLength(), packet.getAddress(), packet.getPort());
                 
             } catch (IOException e) {
                 if (running) {
-                    System.err.println("Erro no servidor: " + e.getMessage());
+                    LOG.error("Erro no servidor: {}", e.getMessage());
                 }
             }
         }
     }
     
-    private void processMessage(String message, InetAddress address, int port) {
-        String[] parts = message.split("\\|", 3);
-        String command = parts[0];
+    // Contadores por shard a cada chat.shards.statsMs, só quando houve tráfego
+    private void startShardStats() {
+        long intervalMs = Long.getLong("chat.shards.statsMs", 10000);
+        long[] lastTotal = new long[1];
+        shardStats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-shard-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        shardStats.scheduleAtFixedRate(() -> {
+            long total = 0;
+            for (int i = 0; i < ingress.getShardCount(); i++) {
+                total += ingress.getReceived(i);
+            }
+            if (total != lastTotal[0]) {
+                lastTotal[0] = total;
+                LOG.info("Recepção por shard: {}", ingress.describe());
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    // Retorna false se o comando foi descartado por falta de espaço nas lanes
+    private boolean processPacket(byte[] data, int length, InetAddress address, int port) {
+        if (metrics != null) {
+            packetsIn.increment();
+            bytesIn.add(length);
+        }
+        if (reliable != null && ReliableTransport.isEnvelope(data, 0, length)) {
+            // Cobrado antes de criar sessão ou responder ACK; os payloads
+            // entregues ainda passam pelo limite por comando em processPayload
+            if (rateLimiter != null && !rateLimiter.tryAcquireEnvelope(address)) {
+                return false;
+            }
+            // A camada confiável entrega os payloads em ordem via processPayload
+            reliable.onPacket(data, 0, length, new InetSocketAddress(address, port));
+            return true;
+        }
+        return processPayload(data, 0, length, address, port);
+    }
+    
+    // Quadros binários são lidos direto do buffer; o resto segue como texto.
+    // Package-private para os benchmarks (Benchmarks/) chamarem sem socket.
+    boolean processPayload(byte[] data, int offset, int length, InetAddress address, int port) {
+        // Fragmentos ficam na tabela até a mensagem completar; o limite por
+        // endereço é cobrado antes da cópia
+        if (Fragmenter.isFragment(data, offset, length)) {
+            if (rateLimiter != null && !rateLimiter.tryAcquireFragment(address)) {
+                return false;
+            }
+            byte[] whole = reassembler.accept(data, offset, length, new InetSocketAddress(address, port));
+            return whole == null || processPayload(whole, 0, whole.length, address, port);
+        }
+        
+        // Excesso descartado só com o cabeçalho, antes de qualquer alocação
+        if (rateLimiter != null && !rateLimiter.tryAcquire(data, offset, length, address)) {
+            return false;
+        }
         
+        Command cmd;
         try {
-            switch (command) {
+            if (WireProtocol.isFrame(data, offset, length)) {
+                cmd = parseFrame(ByteBuffer.wrap(data, offset, length));
+            } else {
+                cmd = parseText(new TextFields(data, offset, length));
+            }
+        } catch (RuntimeException e) {
+            if (metrics != null) {
+                parseErrors.increment();
+            }
+            LOG.error("Erro processando comando: {}", e.getMessage());
+            return true;
+        }
+        return cmd == null || dispatch(cmd, address, port);
+    }
+    
+    // Só os campos usados viram String; o texto da mensagem fica em bytes
+    private Command parseText(TextFields fields) {
+        Command cmd = new Command(fields.name(), 0, 0);
+        
+        switch (cmd.name) {
+            case "GET_MESSAGES":
+                // GET_MESSAGES|<lastSeq> envia apenas o que o cliente ainda não tem;
+                // GET_MESSAGES|<lastSeq>|<maxBytes> pede o histórico em lotes
+                cmd.lastSeq = fields.count() > 1 ? fields.number(1) : 0;
+                cmd.maxBytes = fields.count() > 2 ? Math.toIntExact(fields.number(2)) : -1;
+                break;
+            case "REGISTER":
+                cmd.username = fields.string(1);
+                // REGISTER|<nome>|proto=<versão> pede o protocolo binário
+                if (fields.count() > 2 && fields.startsWith(2, "proto=")) {
+                    int requested = Math.toIntExact(fields.number(2, 6));
+                    cmd.protocolVersion = Math.min(requested, WireProtocol.VERSION);
+                }
+                break;
+            case "GET_REPORT":
+                // GET_REPORT|<sala> pede os contadores de uma sala
+                cmd.room = fields.count() > 1 ? fields.string(1) : null;
+                break;
+            case "JOIN":
+            case "LEAVE":
+            case "ROOM_MESSAGE":
+                // JOIN|<usuário>|<sala>[|<lastSeq>], LEAVE|<usuário>|<sala>,
+                // ROOM_MESSAGE|<usuário>|<sala>|<texto>
+                fields.limit(4);
+                cmd.username = fields.string(1);
+                cmd.room = fields.string(2);
+                if (cmd.name.equals("ROOM_MESSAGE")) {
+                    cmd.text = fields.bytes(3);
+                } else if (fields.count() > 3) {
+                    cmd.lastSeq = fields.number(3);
+                }
+                break;
+            default:
+                cmd.username = fields.count() > 1 ? fields.string(1) : null;
+                cmd.text = fields.count() > 2 ? fields.bytes(2) : null;
+                break;
+        }
+        return cmd;
+    }
+    
+    private Command parseFrame(ByteBuffer frame) {
+        byte version = WireProtocol.version(frame);
+        byte opcode = WireProtocol.opcode(frame);
+        int requestId = WireProtocol.messageId(frame);
+        int fields = WireProtocol.fieldCount(frame);
+        WireProtocol.skipHeader(frame);
+        
+        Command cmd;
+        switch (opcode) {
+            case WireProtocol.REGISTER:
+                cmd = new Command("REGISTER", version, requestId);
+                cmd.username = WireProtocol.readString(frame);
+                cmd.protocolVersion = Math.min(version, WireProtocol.VERSION);
+                break;
+            case WireProtocol.MESSAGE:
+                cmd = new Command("MESSAGE", version, requestId);
+                cmd.username = WireProtocol.readString(frame);
+                cmd.text = WireProtocol.readBytes(frame);
+                break;
+            case WireProtocol.HEARTBEAT:
+                cmd = new Command("HEARTBEAT", version, requestId);
+                cmd.username = WireProtocol.readString(frame);
+                break;
+            case WireProtocol.GET_USERS:
+                cmd = new Command("GET_USERS", version, requestId);
+                break;
+            case WireProtocol.GET_MESSAGES:
+                cmd = new Command("GET_MESSAGES", version, requestId);
+                cmd.lastSeq = WireProtocol.readLong(frame);
+                cmd.maxBytes = (int) WireProtocol.readLong(frame);
+                break;
+            case WireProtocol.GET_REPORT:
+                cmd = new Command("GET_REPORT", version, requestId);
+                if (fields > 0) {
+                    cmd.room = WireProtocol.readString(frame);
+                }
+                break;
+            case WireProtocol.DISCONNECT:
+                cmd = new Command("DISCONNECT", version, requestId);
+                cmd.username = WireProtocol.readString(frame);
+                break;
+            case WireProtocol.GET_ROSTER:
+                cmd = new Command("GET_ROSTER", version, requestId);
+                cmd.maxBytes = (int) WireProtocol.readLong(frame);
+                break;
+            case WireProtocol.JOIN:
+                cmd = new Command("JOIN", version, requestId);
+                cmd.username = WireProtocol.readString(frame);
+                cmd.room = WireProtocol.readString(frame);
+                cmd.lastSeq = WireProtocol.readLong(frame);
+                break;
+            case WireProtocol.LEAVE:
+                cmd = new Command("LEAVE", version, requestId);
+                cmd.username = WireProtocol.readString(frame);
+                cmd.room = WireProtocol.readString(frame);
+                break;
+            case WireProtocol.ROOM_MESSAGE:
+                cmd = new Command("ROOM_MESSAGE", version, requestId);
+                cmd.username = WireProtocol.readString(frame);
+                cmd.room = WireProtocol.readString(frame);
+                cmd.text = WireProtocol.readBytes(frame);
+                break;
+            default:
+                LOG.warn("Opcode desconhecido: {}", opcode);
+                return null;
+        }
+        return cmd;
+    }
+    
+    private boolean dispatch(Command cmd, InetAddress address, int port) {
+        if (pipeline == null) {
+            executeCommand(cmd, address, port);
+            return true;
+        }
+        
+        if (!pipeline.submit(laneKey(cmd, address, port), () -> executeCommand(cmd, address, port))) {
+            queueFullLines.log("Fila de processamento cheia, comando descartado: {}", cmd.name, null);
+            return false;
+        }
+        return true;
+    }
+    
+    // Comandos com usuário vão para a lane do usuário; consultas anônimas
+    // (GET_USERS, GET_MESSAGES, GET_REPORT) usam o endereço de origem
+    private int laneKey(Command cmd, InetAddress address, int port) {
+        if (cmd.username != null) {
+            return cmd.username.hashCode();
+        }
+        return 31 * address.hashCode() + port;
+    }
+    
+    private void executeCommand(Command cmd, InetAddress address, int port) {
+        long started = metrics != null && (timingTick++ & timingMask) == 0 ? System.nanoTime() : 0;
+        try {
+            switch (cmd.name) {
                 case "REGISTER":
-                    handleRegister(parts[1], address, port);
+                    handleRegister(cmd, address, port);
                     break;
                 case "MESSAGE":
-                    handleMessage(parts[1], parts[2], address, port);
+                    handleMessage(cmd, address, port);
                     break;
                 case "HEARTBEAT":
-                    handleHeartbeat(parts[1], address, port);
+                    handleHeartbeat(cmd.username, address, port);
                     break;
                 case "GET_USERS":
-                    sendUserList(address, port);
+                    sendUserList(cmd, address, port);
                     break;
                 case "GET_MESSAGES":
-                    sendMessageHistory(address, port);
+                    if (cmd.maxBytes > 0) {
+                        sendHistoryBatches(cmd, address, port);
+                    } else {
+                        sendMessageHistory(cmd, address, port);
+                    }
                     break;
                 case "GET_REPORT":
-                    sendReport(address, port);
+                    sendReport(cmd, address, port);
+                    break;
+                case "GET_ROSTER":
+                    sendRosterSnapshot(cmd, address, port);
                     break;
                 case "DISCONNECT":
-                    handleDisconnect(parts[1]);
+                    handleDisconnect(cmd.username);
+                    break;
+                case "JOIN":
+                    handleJoin(cmd, address, port);
+                    break;
+                case "LEAVE":
+                    handleLeave(cmd, address, port);
+                    break;
+                case "ROOM_MESSAGE":
+                    handleRoomMessage(cmd, address, port);
+                    break;
+                case "GET_METRICS":
+                    sendMetrics(cmd, address, port);
                     break;
             }
         } catch (Exception e) {
-            System.err.println("Erro processando comando: " + e.getMessage());
+            LOG.error("Erro processando comando: {}", e.getMessage());
+        }
+        if (started != 0) {
+            LatencyHistogram latency = handlerNanos.get(cmd.name);
+            if (latency != null) {
+                latency.record(System.nanoTime() - started);
+            }
+        }
+    }
+    
+    // GET_METRICS: uma linha "<nome> <valor>" por métrica, para raspar localmente.
+    // Origem não autorizada não recebe nada: a resposta é bem maior que o
+    // pedido e a origem de um datagrama pode ser forjada
+    private void sendMetrics(Command cmd, InetAddress address, int port) {
+        if (metrics != null && !metrics.allows(address)) {
+            return;
         }
+        if (metrics == null) {
+            sendError(cmd, "Métricas desligadas", address, port);
+            return;
+        }
+        sendMessage(metrics.render(), address, port);
     }
     
-    private void handleRegister(String username, InetAddress address, int port) {
-        ClientInfo client = new ClientInfo(username, address, port);
-        clients.put(username, client);
-        messageCount.put(username, 0);
+    private void handleRegister(Command cmd, InetAddress address, int port) {
+        String username = cmd.username;
+        ClientInfo client = new ClientInfo(username, address, port, cmd.protocolVersion);
+        ClientInfo previous = clients.put(username, client);
+        if (previous != null) {
+            heartbeatWheel.cancel(previous);
+            // O registro anterior só contava se ainda estava online
+            if (previous.markOffline() && previous.needsUserList()) {
+                legacyClients.decrementAndGet();
+            }
+            if (!previous.getSocketAddress().equals(client.getSocketAddress())) {
+                fragmentPeers.remove(previous.getSocketAddress());
+            }
+            // Re-registro mantém as inscrições, agora com o novo endereço
+            for (String roomName : previous.getRooms()) {
+                rooms.computeIfPresent(roomName, (name, room) -> {
+                    room.replace(previous, client);
+                    return room;
+                });
+                client.getRooms().add(roomName);
+            }
+        }
+        if (client.needsUserList()) {
+            legacyClients.incrementAndGet();
+        }
+        if (client.acceptsFragments()) {
+            fragmentPeers.add(client.getSocketAddress());
+        } else {
+            fragmentPeers.remove(client.getSocketAddress());
+        }
+        client.attach(heartbeatWheel);
+        // Mantém a contagem recuperada do log se o usuário já existia
+        messageCount.putIfAbsent(username, 0);
         
-        System.out.println("Usuário registrado: " + username);
+        registerLines.log("Usuário registrado: {}", username, null);
         
         // Notifica outros clientes sobre novo usuário
-        broadcastUserList();
+        publishPresence("USER_JOINED", WireProtocol.USER_JOINED, Collections.singletonList(client));
         
-        // Envia confirmação
-        sendMessage("REGISTER_OK", address, port);
+        // Envia confirmação (com a versão negociada, se houver)
+        if (cmd.binary) {
+            sendBytes(new WireProtocol.Writer(WireProtocol.REGISTER_OK, cmd.requestId)
+                    .putLong(cmd.protocolVersion).toByteArray(), address, port);
+        } else if (cmd.protocolVersion > 0) {
+            sendMessage("REGISTER_OK|" + cmd.protocolVersion, address, port);
+        } else {
+            sendMessage("REGISTER_OK", address, port);
+        }
     }
     
-    private void handleMessage(String username, String messageText, InetAddress address, int port) {
+    private void handleMessage(Command cmd, InetAddress address, int port) {
+        String username = cmd.username;
         if (!clients.containsKey(username)) {
-            sendMessage("ERROR|Usuário não registrado", address, port);
+            sendError(cmd, "Usuário não registrado", address, port);
+            return;
+        }
+        // Antes de reservar a sequência: sem texto a mensagem nunca seria publicada
+        if (cmd.text == null) {
+            sendError(cmd, "Mensagem sem texto", address, port);
             return;
         }
         
         // Atualiza heartbeat do cliente
-        clients.get(username).updateHeartbeat();
+        ClientInfo sender = clients.get(username);
+        revive(sender);
         
-        // Cria mensagem
-        Message msg = new Message(username, messageText);
-        messageHistory.add(msg);
+        // No cluster, só o dono da sala global define a sequência
+        if (cluster != null && !cluster.owns(GLOBAL_ROOM)) {
+            cluster.postToOwner(GLOBAL_ROOM, username, cmd.text);
+            return;
+        }
+        postGlobalMessage(username, cmd.text);
+    }
+    
+    private Message postGlobalMessage(String username, byte[] text) {
+        // Cria mensagem com o próximo número de sequência
+        Message msg = new Message(messageHistory.claim(), System.currentTimeMillis(), username, text);
+        if (messageLog != null) {
+            try {
+                messageLog.append(msg);
+            } catch (IOException e) {
+                LOG.error("Erro gravando mensagem no log: {}", e.getMessage());
+            }
+        }
+        messageHistory.publish(msg);
         
-        // Atualiza contador de mensagens
-        messageCount.put(username, messageCount.get(username) + 1);
+        // Atualiza contador de mensagens (merge é atômico entre lanes)
+        messageCount.merge(username, 1, Integer::sum);
         
-        System.out.println("[" + msg.getTimestamp() + "] " + username + ": " + messageText);
+        // O texto só é decodificado se a amostra for escrita (Message.toString)
+        messageLines.log("{}", msg, null);
         
-        // Retransmite mensagem para todos os clientes online
+        // Retransmite mensagem para todos os clientes online (e para os outros nós)
+        broadcastMessage(msg);
+        if (cluster != null) {
+            cluster.broadcastRoomMessage(GLOBAL_ROOM, msg);
+        }
+        return msg;
+    }
+    
+    // Mensagem global sequenciada pelo nó dono, replicada neste nó
+    private void acceptGlobalReplica(Message msg) {
+        if (messageLog != null) {
+            try {
+                messageLog.append(msg);
+            } catch (IOException e) {
+                LOG.error("Erro gravando mensagem no log: {}", e.getMessage());
+            }
+        }
+        messageHistory.restore(msg);
+        messageCount.merge(msg.getUsername(), 1, Integer::sum);
         broadcastMessage(msg);
     }
     
+    // Inscreve o cliente na sala (criando-a se preciso) e envia o que ele
+    // ainda não tem do histórico da sala
+    private void handleJoin(Command cmd, InetAddress address, int port) {
+        ClientInfo client = clients.get(cmd.username);
+        if (client == null) {
+            sendError(cmd, "Usuário não registrado", address, port);
+            return;
+        }
+        if (!isValidRoomName(cmd.room)) {
+            sendError(cmd, "Nome de sala inválido", address, port);
+            return;
+        }
+        
+        Room room = subscribe(client, cmd.room);
+        
+        // As páginas são montadas antes para que ROOM_JOINED informe a última
+        // seq de fato entregue, e enviadas depois dele
+        List<byte[]> pages = new ArrayList<>();
+        HistoryBatcher batcher = new HistoryBatcher(PathMtu.maxPayload(address), cmd.binary,
+                cmd.requestId, cmd.room, pages::add);
+        long lastSeq = room.getHistory().forEachSince(cmd.lastSeq, batcher::add);
+        batcher.finish(lastSeq);
+        
+        if (cmd.binary) {
+            sendBytes(new WireProtocol.Writer(WireProtocol.ROOM_JOINED, cmd.requestId)
+                    .putString(cmd.room).putLong(room.getSubscriberCount()).putLong(lastSeq)
+                    .toByteArray(), address, port);
+        } else {
+            sendMessage("ROOM_JOINED|" + cmd.room + "|" + room.getSubscriberCount() + "|" + lastSeq,
+                        address, port);
+        }
+        for (byte[] page : pages) {
+            sendBytes(page, address, port);
+        }
+    }
+    
+    // compute é atômico por chave: a sala não pode ser descartada entre a
+    // criação e a inscrição
+    private Room subscribe(ClientInfo client, String roomName) {
+        boolean[] firstLocal = new boolean[1];
+        Room room = rooms.compute(roomName, (name, existing) -> {
+            Room target = existing != null ? existing : new Room(name, roomHistoryCapacity);
+            firstLocal[0] = target.join(client) && target.getSubscriberCount() == 1;
+            return target;
+        });
+        client.getRooms().add(roomName);
+        
+        // Primeiro inscrito local de uma sala de outro nó: passa a receber as
+        // mensagens dela, com o que faltou desde a última seq conhecida
+        if (firstLocal[0] && cluster != null && !cluster.owns(roomName)) {
+            cluster.subscribe(roomName, room.getHistory().getLastSequence());
+        }
+        return room;
+    }
+    
+    private void unsubscribe(String username, String roomName) {
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            if (!room.leave(username) || room.getSubscriberCount() > 0) {
+                return room;
+            }
+            // Réplica de sala de outro nó sem inscritos locais: deixa de receber
+            if (cluster != null && !cluster.owns(name)) {
+                cluster.unsubscribe(name);
+                return null;
+            }
+            return room.isIdle(System.currentTimeMillis(), roomIdleMs) ? null : room;
+        });
+    }
+    
+    // Cliente dado como offline que volta a falar: reaparece online e volta
+    // às salas de que a expiração o tirou
+    private void revive(ClientInfo client) {
+        if (client.updateHeartbeat()) {
+            if (client.needsUserList()) {
+                legacyClients.incrementAndGet();
+            }
+            for (String roomName : client.getRooms()) {
+                subscribe(client, roomName);
+            }
+            publishPresence("USER_STATUS", WireProtocol.USER_STATUS, Collections.singletonList(client));
+        }
+    }
+    
+    private void handleLeave(Command cmd, InetAddress address, int port) {
+        ClientInfo client = clients.get(cmd.username);
+        if (client != null) {
+            client.getRooms().remove(cmd.room);
+        }
+        unsubscribe(cmd.username, cmd.room);
+        
+        if (cmd.binary) {
+            sendBytes(new WireProtocol.Writer(WireProtocol.ROOM_LEFT, cmd.requestId)
+                    .putString(cmd.room).toByteArray(), address, port);
+        } else {
+            sendMessage("ROOM_LEFT|" + cmd.room, address, port);
+        }
+    }
+    
+    // Mensagem da sala: histórico e contadores da sala, difusão só aos inscritos
+    private void handleRoomMessage(Command cmd, InetAddress address, int port) {
+        ClientInfo sender = clients.get(cmd.username);
+        // Antes da checagem: quem volta da expiração retoma as inscrições
+        if (sender != null) {
+            revive(sender);
+        }
+        Room room = cmd.room == null ? null : rooms.get(cmd.room);
+        if (sender == null || room == null || !room.isMember(cmd.username)) {
+            sendError(cmd, "Usuário não inscrito na sala", address, port);
+            return;
+        }
+        
+        if (cluster != null && !cluster.owns(room.getName())) {
+            cluster.postToOwner(room.getName(), cmd.username, cmd.text);
+            return;
+        }
+        postRoomMessage(room, cmd.username, cmd.text);
+    }
+    
+    // No dono da sala: sequencia, difunde aos inscritos locais e replica para
+    // os nós que têm inscritos
+    private void postRoomMessage(Room room, String username, byte[] text) {
+        Message msg = room.post(username, text);
+        broadcastRoomMessage(room, msg);
+        if (cluster != null) {
+            for (String node : room.getRemoteNodes()) {
+                cluster.sendRoomMessage(node, room.getName(), msg);
+            }
+        }
+    }
+    
+    private void broadcastRoomMessage(Room room, Message msg) {
+        fanOut.broadcast("ROOM_MESSAGE",
+            encodeRoomMessage(room.getName(), msg, false),
+            encodeRoomMessage(room.getName(), msg, true),
+            room.getSubscribers());
+    }
+    
+    private boolean isValidRoomName(String room) {
+        return room != null && !room.isEmpty()
+                && room.indexOf('|') < 0 && room.indexOf('\n') < 0
+                && room.getBytes(StandardCharsets.UTF_8).length <= MAX_ROOM_NAME_BYTES;
+    }
+    
+    private void sendError(Command cmd, String error, InetAddress address, int port) {
+        if (cmd.binary) {
+            sendBytes(new WireProtocol.Writer(WireProtocol.ERROR, cmd.requestId)
+                    .putString(error).toByteArray(), address, port);
+        } else {
+            sendMessage("ERROR|" + error, address, port);
+        }
+    }
+    
     private void handleHeartbeat(String username, InetAddress address, int port) {
         ClientInfo client = clients.get(username);
         if (client != null) {
-            client.updateHeartbeat();
+            revive(client);
         }
     }
     
     private void handleDisconnect(String username) {
         ClientInfo client = clients.get(username);
         if (client != null) {
-            client.setOnline(false);
-            System.out.println("Usuário desconectado: " + username);
-            broadcastUserList();
+            if (client.markOffline() && client.needsUserList()) {
+                legacyClients.decrementAndGet();
+            }
+            heartbeatWheel.cancel(client);
+            for (String roomName : client.getRooms()) {
+                unsubscribe(username, roomName);
+            }
+            client.getRooms().clear();
+            LOG.info("Usuário desconectado: {}", username);
+            publishPresence("USER_LEFT", WireProtocol.USER_LEFT, Collections.singletonList(client));
         }
     }
     
-    private void broadcastMessage(Message message) {
-        String msgData = "NEW_MESSAGE|" + message.getUsername() + "|" + 
-                        message.getText() + "|" + message.getTimestamp();
+    // Package-private para os benchmarks
+    void broadcastMessage(Message message) {
+        fanOut.broadcast("NEW_MESSAGE",
+            encodeMessage("NEW_MESSAGE", WireProtocol.NEW_MESSAGE, message, false, 0),
+            encodeMessage("NEW_MESSAGE", WireProtocol.NEW_MESSAGE, message, true, 0),
+            clients.values());
+    }
+    
+    // Difunde uma mudança de presença: delta versionado para os clientes v2 e,
+    // só se ainda houver clientes antigos registrados, o USER_LIST completo.
+    // O lock garante que os deltas entram na fila de difusão na ordem das versões.
+    private void publishPresence(String label, byte opcode, List<ClientInfo> changed) {
+        synchronized (presenceLock) {
+            long version = ++rosterVersion;
+            WireProtocol.Writer delta = new WireProtocol.Writer(opcode, 0).putLong(version);
+            for (ClientInfo client : changed) {
+                delta.putString(client.getUsername()).putLong(client.isOnline() ? 1 : 0);
+            }
+            
+            byte[][] byFormat = new byte[ClientInfo.WIRE_FORMATS][];
+            if (legacyClients.get() > 0) {
+                byFormat[ClientInfo.FORMAT_TEXT] = encodeUserList(false, 0);
+                byFormat[ClientInfo.FORMAT_BINARY] = encodeUserList(true, 0);
+            }
+            byFormat[ClientInfo.FORMAT_PRESENCE] = delta.toByteArray();
+            fanOut.broadcast(label, byFormat, clients.values());
+        }
         
-        for (ClientInfo client : clients.values()) {
-            if (client.isOnline()) {
-                sendMessage(msgData, client.getAddress(), client.getPort());
+        // Só a presença dos clientes deste nó é propagada aos outros nós
+        if (cluster != null) {
+            List<ClientInfo> local = new ArrayList<>(changed.size());
+            for (ClientInfo client : changed) {
+                if (!client.isRemote()) {
+                    local.add(client);
+                }
+            }
+            if (!local.isEmpty()) {
+                cluster.broadcastPresence(local);
             }
         }
     }
     
-    private void broadcastUserList() {
-        StringBuilder userList = new StringBuilder("USER_LIST");
-        for (Map.Entry<String, ClientInfo> entry : clients.entrySet()) {
-            userList.append("|").append(entry.getKey())
-                   .append(":").append(entry.getValue().isOnline() ? "online" : "offline");
+    // Clientes deste nó seguidos dos usuários de outros nós (o local prevalece)
+    private List<ClientInfo> rosterEntries() {
+        List<ClientInfo> entries = new ArrayList<>(clients.values());
+        for (ClientInfo remote : remoteClients.values()) {
+            if (!clients.containsKey(remote.getUsername())) {
+                entries.add(remote);
+            }
+        }
+        return entries;
+    }
+    
+    // Snapshot completo do roster em páginas do tamanho do caminho, com a
+    // versão a partir da qual o cliente volta a aplicar deltas
+    private void sendRosterSnapshot(Command cmd, InetAddress address, int port) {
+        long version;
+        List<String> names = new ArrayList<>();
+        List<Boolean> online = new ArrayList<>();
+        synchronized (presenceLock) {
+            version = rosterVersion;
+            for (ClientInfo client : rosterEntries()) {
+                names.add(client.getUsername());
+                online.add(client.isOnline());
+            }
+        }
+        
+        // Cabeçalho (3 longs) + pares usuário/online
+        int limit = PathMtu.maxPayload(address);
+        if (cmd.maxBytes > 0) {
+            limit = Math.min(limit, cmd.maxBytes);
+        }
+        int headerSize = WireProtocol.HEADER_SIZE + 3 * 10;
+        List<Integer> pageStarts = new ArrayList<>();
+        pageStarts.add(0);
+        int size = headerSize;
+        for (int i = 0; i < names.size(); i++) {
+            int entrySize = 2 + names.get(i).getBytes(StandardCharsets.UTF_8).length + 10;
+            if (size + entrySize > limit && size > headerSize) {
+                pageStarts.add(i);
+                size = headerSize;
+            }
+            size += entrySize;
         }
         
-        for (ClientInfo client : clients.values()) {
-            if (client.isOnline()) {
-                sendMessage(userList.toString(), client.getAddress(), client.getPort());
+        for (int page = 0; page < pageStarts.size(); page++) {
+            int from = pageStarts.get(page);
+            int to = page + 1 < pageStarts.size() ? pageStarts.get(page + 1) : names.size();
+            boolean more = page + 1 < pageStarts.size();
+            WireProtocol.Writer frame = new WireProtocol.Writer(WireProtocol.USER_SNAPSHOT, cmd.requestId)
+                    .putLong(version).putLong(page).putLong(more ? 1 : 0);
+            for (int i = from; i < to; i++) {
+                frame.putString(names.get(i)).putLong(online.get(i) ? 1 : 0);
             }
+            sendBytes(frame.toByteArray(), address, port);
         }
     }
     
-    private void sendUserList(InetAddress address, int port) {
-        StringBuilder userList = new StringBuilder("USER_LIST");
-        for (Map.Entry<String, ClientInfo> entry : clients.entrySet()) {
-            userList.append("|").append(entry.getKey())
-                   .append(":").append(entry.getValue().isOnline() ? "online" : "offline");
-        }
-        sendMessage(userList.toString(), address, port);
+    private void sendUserList(Command cmd, InetAddress address, int port) {
+        sendBytes(encodeUserList(cmd.binary, cmd.requestId), address, port);
     }
     
-    private void sendMessageHistory(InetAddress address, int port) {
-        for (Message msg : messageHistory) {
-            String msgData = "HISTORY_MESSAGE|" + msg.getUsername() + "|" + 
-                           msg.getText() + "|" + msg.getTimestamp();
-            sendMessage(msgData, address, port);
+    private void sendMessageHistory(Command cmd, InetAddress address, int port) {
+        // Informa a última seq entregue: uma reservada e ainda não publicada
+        // não pode ser dada como vista
+        long lastSeq = messageHistory.forEachSince(cmd.lastSeq, msg ->
+            sendBytes(encodeMessage("HISTORY_MESSAGE", WireProtocol.HISTORY_MESSAGE,
+                                    msg, cmd.binary, cmd.requestId), address, port));
+        
+        if (cmd.binary) {
+            sendBytes(new WireProtocol.Writer(WireProtocol.HISTORY_END, cmd.requestId)
+                    .putLong(lastSeq).toByteArray(), address, port);
+        } else {
+            sendMessage("HISTORY_END|" + lastSeq, address, port);
         }
-        sendMessage("HISTORY_END", address, port);
     }
     
-    private void sendReport(InetAddress address, int port) {
+    // Histórico em páginas do tamanho do payload permitido pelo caminho,
+    // limitado também pelo buffer de recepção informado pelo cliente
+    private void sendHistoryBatches(Command cmd, InetAddress address, int port) {
+        int limit = Math.min(cmd.maxBytes, PathMtu.maxPayload(address));
+        HistoryBatcher batcher = new HistoryBatcher(limit, cmd.binary, cmd.requestId,
+                                                    data -> sendBytes(data, address, port));
+        batcher.finish(messageHistory.forEachSince(cmd.lastSeq, batcher::add));
+    }
+    
+    private void sendReport(Command cmd, InetAddress address, int port) {
+        // Com sala, os contadores são os da sala
+        Map<String, Integer> counts = messageCount;
+        if (cmd.room != null) {
+            Room room = rooms.get(cmd.room);
+            counts = room != null ? room.getMessageCount() : Collections.emptyMap();
+        }
+        
+        if (cmd.binary) {
+            WireProtocol.Writer report = new WireProtocol.Writer(WireProtocol.REPORT, cmd.requestId);
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                report.putString(entry.getKey()).putLong(entry.getValue());
+            }
+            sendBytes(report.toByteArray(), address, port);
+            return;
+        }
+        
         StringBuilder report = new StringBuilder("REPORT");
-        for (Map.Entry<String, Integer> entry : messageCount.entrySet()) {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
             report.append("|").append(entry.getKey())
                   .append(":").append(entry.getValue());
         }
         sendMessage(report.toString(), address, port);
     }
     
+    private byte[] encodeMessage(String command, byte opcode, Message msg, boolean binary, int requestId) {
+        if (binary) {
+            return new WireProtocol.Writer(opcode, requestId)
+                    .putString(msg.getUsername())
+                    .putUtf8(msg.getTextBytes())
+                    .putString(msg.getTimestamp())
+                    .putLong(msg.getSequence())
+                    .toByteArray();
+        }
+        return msg.toTextRecord(command + "|", "");
+    }
+    
+    private byte[] encodeRoomMessage(String room, Message msg, boolean binary) {
+        if (binary) {
+            return new WireProtocol.Writer(WireProtocol.ROOM_NEW_MESSAGE, 0)
+                    .putString(room)
+                    .putString(msg.getUsername())
+                    .putUtf8(msg.getTextBytes())
+                    .putString(msg.getTimestamp())
+                    .putLong(msg.getSequence())
+                    .toByteArray();
+        }
+        return msg.toTextRecord("ROOM_MESSAGE|" + room + "|", "");
+    }
+    
+    private byte[] encodeUserList(boolean binary, int requestId) {
+        if (binary) {
+            WireProtocol.Writer userList = new WireProtocol.Writer(WireProtocol.USER_LIST, requestId);
+            for (ClientInfo client : rosterEntries()) {
+                userList.putString(client.getUsername()).putLong(client.isOnline() ? 1 : 0);
+            }
+            return userList.toByteArray();
+        }
+        
+        StringBuilder userList = new StringBuilder("USER_LIST");
+        for (ClientInfo client : rosterEntries()) {
+            userList.append("|").append(client.getUsername())
+                   .append(":").append(client.isOnline() ? "online" : "offline");
+        }
+        return userList.toString().getBytes();
+    }
+    
     private void sendMessage(String message, InetAddress address, int port) {
+        sendBytes(message.getBytes(), address, port);
+    }
+    
+    private void sendBytes(byte[] data, InetAddress address, int port) {
+        InetSocketAddress peer = new InetSocketAddress(address, port);
+        // Clientes que remontam recebem payloads grandes em fragmentos
+        if (data.length > fragmentSize && fragmentPeers.contains(peer)) {
+            for (byte[] fragment : Fragmenter.split(data, fragmentSize)) {
+                sendDatagram(fragment, peer);
+            }
+        } else {
+            sendDatagram(data, peer);
+        }
+    }
+    
+    private void sendDatagram(byte[] data, InetSocketAddress peer) {
+        if (metrics != null) {
+            packetsOut.increment();
+        }
+        if (reliable != null && reliable.isReliablePeer(peer)) {
+            reliable.send(peer, data);
+            return;
+        }
         try {
-            byte[] data = message.getBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
+            DatagramPacket packet = new DatagramPacket(data, data.length, peer);
             socket.send(packet);
         } catch (IOException e) {
-            System.err.println("Erro enviando mensagem: " + e.getMessage());
+            LOG.error("Erro enviando mensagem: {}", e.getMessage());
         }
     }
     
     private void startHeartbeatChecker() {
-        Timer timer = new Timer(true);
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                checkOfflineClients();
-            }
-        }, 10000, 10000); // Verifica a cada 10 segundos
+        long tickMs = Long.getLong("chat.heartbeat.tickMs", 500);
+        long timeoutMs = Long.getLong("chat.heartbeat.timeoutMs", 15000);
+        heartbeatWheel = new HeartbeatWheel(tickMs, timeoutMs, this::onClientsExpired);
     }
     
-    private void checkOfflineClients() {
-        long now = System.currentTimeMillis();
-        boolean userListChanged = false;
+    // Só os clientes que venceram neste tick chegam aqui
+    private void onClientsExpired(List<ClientInfo> expired) {
+        List<ClientInfo> changed = new ArrayList<>();
         
-        for (ClientInfo client : clients.values()) {
-            if (client.isOnline() && (now - client.getLastHeartbeat() > 15000)) {
-                client.setOnline(false);
-                userListChanged = true;
-                System.out.println("Cliente offline detectado: " + client.getUsername());
+        for (ClientInfo client : expired) {
+            if (clients.get(client.getUsername()) == client && client.markOffline()) {
+                if (client.needsUserList()) {
+                    legacyClients.decrementAndGet();
+                }
+                // Sai dos inscritos, mas guarda as salas para revive()
+                for (String roomName : client.getRooms()) {
+                    unsubscribe(client.getUsername(), roomName);
+                }
+                changed.add(client);
+                LOG.info("Cliente offline detectado: {}", client.getUsername());
             }
         }
         
-        if (userListChanged) {
-            broadcastUserList();
+        // Um único delta para todos os que expiraram neste tick
+        if (!changed.isEmpty()) {
+            publishPresence("USER_STATUS", WireProtocol.USER_STATUS, changed);
         }
     }
     
+    // Descarta as salas ociosas (-Dchat.room.idleMs, padrão 10 min)
+    private void startRoomSweeper() {
+        roomIdleMs = Long.getLong("chat.room.idleMs", 10 * 60 * 1000);
+        long intervalMs = Math.max(1000, Math.min(roomIdleMs, 60_000));
+        roomSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-room-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        roomSweeper.scheduleAtFixedRate(() -> {
+            long now = System.currentTimeMillis();
+            for (String roomName : rooms.keySet()) {
+                rooms.computeIfPresent(roomName, (name, room) -> room.isIdle(now, roomIdleMs) ? null : room);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
     public void stop() {
         running = false;
+        if (roomSweeper != null) {
+            roomSweeper.shutdownNow();
+        }
+        if (shardStats != null) {
+            shardStats.shutdownNow();
+            LOG.info("Recepção por shard: {}", ingress.describe());
+        }
+        if (ingress != null) {
+            ingress.stop();
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        if (fanOut != null) {
+            fanOut.shutdown();
+        }
+        if (reliable != null) {
+            reliable.shutdown();
+        }
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+        if (rateLimiter != null) {
+            LOG.info("Comandos descartados por limite de taxa: {}", rateLimiter.describe());
+        }
+        LOG.info("Remontagem: {} completas, {} expiradas, {} recusadas",
+            reassembler.getCompleted(), reassembler.getExpired(), reassembler.getRejected());
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        if (heartbeatWheel != null) {
+            heartbeatWheel.shutdown();
+        }
+        if (metrics != null) {
+            metrics.unregisterMBean();
+        }
         if (socket != null && !socket.isClosed()) {
             socket.close();
         }
     }
     
+    // Eventos vindos dos outros nós, entregues em ordem pela thread da ligação
+    private class ClusterEvents implements ClusterLink.Listener {
+        @Override
+        public void onHello(String node) {
+            cluster.sendPresence(node, new ArrayList<>(clients.values()));
+        }
+        
+        @Override
+        public void onRoomPost(String origin, String roomName, String username, byte[] text) {
+            if (GLOBAL_ROOM.equals(roomName)) {
+                postGlobalMessage(username, text);
+                return;
+            }
+            Room room = rooms.computeIfAbsent(roomName, name -> new Room(name, roomHistoryCapacity));
+            postRoomMessage(room, username, text);
+        }
+        
+        @Override
+        public void onRoomMessage(String roomName, Message msg) {
+            if (GLOBAL_ROOM.equals(roomName)) {
+                acceptGlobalReplica(msg);
+                return;
+            }
+            Room room = rooms.get(roomName);
+            if (room != null) {
+                room.restore(msg);
+                broadcastRoomMessage(room, msg);
+            }
+        }
+        
+        @Override
+        public void onSubscribe(String node, String roomName, long lastSeq) {
+            Room room = rooms.compute(roomName, (name, existing) -> {
+                Room target = existing != null ? existing : new Room(name, roomHistoryCapacity);
+                target.addRemoteNode(node);
+                return target;
+            });
+            room.getHistory().forEachSince(lastSeq, msg -> cluster.sendRoomMessage(node, roomName, msg));
+        }
+        
+        @Override
+        public void onUnsubscribe(String node, String roomName) {
+            rooms.computeIfPresent(roomName, (name, room) -> {
+                room.removeRemoteNode(node);
+                return room.isIdle(System.currentTimeMillis(), roomIdleMs) ? null : room;
+            });
+        }
+        
+        @Override
+        public void onPresence(String node, List<String> users, List<Boolean> online) {
+            List<ClientInfo> changed = new ArrayList<>();
+            for (int i = 0; i < users.size(); i++) {
+                String username = users.get(i);
+                if (clients.containsKey(username)) {
+                    continue;
+                }
+                ClientInfo remote = remoteClients.computeIfAbsent(username,
+                    name -> ClientInfo.remote(name, node));
+                remote.setOnline(online.get(i));
+                changed.add(remote);
+            }
+            if (!changed.isEmpty()) {
+                publishPresence("USER_STATUS", WireProtocol.USER_STATUS, changed);
+            }
+        }
+        
+        // Nó fora: os usuários dele saem da presença e ele deixa de receber réplicas
+        @Override
+        public void onNodeDown(String node) {
+            List<ClientInfo> gone = new ArrayList<>();
+            remoteClients.values().removeIf(remote -> {
+                if (!node.equals(remote.getNode())) {
+                    return false;
+                }
+                remote.setOnline(false);
+                gone.add(remote);
+                return true;
+            });
+            if (!gone.isEmpty()) {
+                publishPresence("USER_LEFT", WireProtocol.USER_LEFT, gone);
+            }
+            for (String roomName : rooms.keySet()) {
+                rooms.computeIfPresent(roomName, (name, room) -> {
+                    room.removeRemoteNode(node);
+                    return room.isIdle(System.currentTimeMillis(), roomIdleMs) ? null : room;
+                });
+            }
+        }
+    }
+    
     public static void main(String[] args) {
         try {
             ChatServer server = new ChatServer();
             
             // Adiciona hook para shutdown gracioso
-            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            // (e escreve o que o log assíncrono ainda tiver)
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                LOG.flush();
+            }));
             
             server.start();
-        } catch (SocketException e) {
-            System.err.println("Erro iniciando servidor: " + e.getMessage());
+        } catch (IOException e) {
+            LOG.error("Erro iniciando servidor: {}", e.getMessage());
         }
     }
 }
-
-// Classe auxiliar para informações do cliente
-class ClientInfo {
-    private String username;
-    private InetAddress address;
-    private int port;
-    private long lastHeartbeat;
-    private boolean online;
-    
-    public ClientInfo(String username, InetAddress address, int port) {
-        this.username = username;
-        this.address = address;
-        this.port = port;
-        this.lastHeartbeat = System.currentTimeMillis();
-        this.online = true;
-    }
-    
-    public void updateHeartbeat() {
-        this.lastHeartbeat = System.currentTimeMillis();
-        this.online = true;
-    }
-    
-    // Getters e Setters
-    public String getUsername() { return username; }
-    public InetAddress getAddress() { return address; }
-    public int getPort() { return port; }
-    public long getLastHeartbeat() { return lastHeartbeat; }
-    public boolean isOnline() { return online; }
-    public void setOnline(boolean online) { this.online = online; }
-}
-
-// Classe auxiliar para mensagens
-class Message {
-    private String username;
-    private String text;
-    private String timestamp;
-    
-    public Message(String username, String text) {
-        this.username = username;
-        this.text = text;
-        this.timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss"));
-    }
-    
-    // Getters
-    public String getUsername() { return username; }
-    public String getText() { return text; }
-    public String getTimestamp() { return timestamp; }
-}
\ No newline at end of file
@@ -0,0 +1,109 @@
+package chatudp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Informações de um cliente registrado (ou, no cluster, conectado a outro nó)
+class ClientInfo {
+    // Formatos de fio usados pela difusão
+    static final int FORMAT_TEXT = 0;
+    static final int FORMAT_BINARY = 1;
+    static final int FORMAT_PRESENCE = 2;
+    static final int WIRE_FORMATS = 3;
+    
+    private String username;
+    private InetAddress address;
+    private int port;
+    private InetSocketAddress socketAddress;
+    // Atualizados pelas lanes e pelo verificador de heartbeat
+    private volatile long lastHeartbeat;
+    private volatile boolean online;
+    // 0 = protocolo texto; > 0 = versão do protocolo binário negociada
+    private int protocolVersion;
+    // Roda que expira o cliente e o balde em que ele está (-1 = fora da roda)
+    private HeartbeatWheel wheel;
+    private int wheelSlot = -1;
+    // Salas em que o cliente está inscrito
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // Nó do cluster onde o cliente está conectado (null = este nó)
+    private String node;
+    
+    public ClientInfo(String username, InetAddress address, int port) {
+        this(username, address, port, 0);
+    }
+    
+    public ClientInfo(String username, InetAddress address, int port, int protocolVersion) {
+        this.username = username;
+        this.protocolVersion = protocolVersion;
+        this.address = address;
+        this.port = port;
+        // Criado uma vez para a difusão não alocar um endereço por envio
+        this.socketAddress = new InetSocketAddress(address, port);
+        this.lastHeartbeat = System.currentTimeMillis();
+        this.online = true;
+    }
+    
+    // Usuário conectado a outro nó do cluster, mantido só para a presença
+    static ClientInfo remote(String username, String node) {
+        ClientInfo client = new ClientInfo(username, InetAddress.getLoopbackAddress(), 0);
+        client.node = node;
+        return client;
+    }
+    
+    public void attach(HeartbeatWheel wheel) {
+        this.wheel = wheel;
+        wheel.schedule(this);
+    }
+    
+    // Reagenda a expiração na roda a partir deste heartbeat.
+    // Retorna true se o cliente estava offline e voltou.
+    public boolean updateHeartbeat() {
+        this.lastHeartbeat = System.currentTimeMillis();
+        // Caminho comum (já online) sem lock
+        boolean wasOffline = !online && markOnline();
+        if (wheel != null) {
+            wheel.schedule(this);
+        }
+        return wasOffline;
+    }
+    
+    // Transições de presença: só quem efetivamente muda recebe true, para
+    // heartbeat, expiração e DISCONNECT simultâneos contarem uma vez só
+    public synchronized boolean markOnline() {
+        if (online) {
+            return false;
+        }
+        online = true;
+        return true;
+    }
+    
+    public synchronized boolean markOffline() {
+        if (!online) {
+            return false;
+        }
+        online = false;
+        return true;
+    }
+    
+    // Getters e Setters
+    public String getUsername() { return username; }
+    public InetAddress getAddress() { return address; }
+    public int getPort() { return port; }
+    public InetSocketAddress getSocketAddress() { return socketAddress; }
+    public int getProtocolVersion() { return protocolVersion; }
+    public boolean isBinary() { return protocolVersion > 0; }
+    public boolean acceptsFragments() { return protocolVersion >= WireProtocol.FRAGMENT_VERSION; }
+    public int getWireFormat() { return Math.min(protocolVersion, FORMAT_PRESENCE); }
+    // Cliente sem deltas de presença: precisa do USER_LIST completo
+    public boolean needsUserList() { return getWireFormat() < FORMAT_PRESENCE; }
+    public long getLastHeartbeat() { return lastHeartbeat; }
+    public boolean isOnline() { return online; }
+    public void setOnline(boolean online) { this.online = online; }
+    public Set<String> getRooms() { return rooms; }
+    public String getNode() { return node; }
+    public boolean isRemote() { return node != null; }
+    int getWheelSlot() { return wheelSlot; }
+    void setWheelSlot(int wheelSlot) { this.wheelSlot = wheelSlot; }
+}
@@ -0,0 +1,335 @@
+package chatudp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Ligação entre nós do cluster. Cada nó tem uma porta própria para o tráfego
+// entre servidores, separada da porta dos clientes, e os quadros seguem pela
+// camada confiável (ordem e retransmissão por par). Configuração:
+//
+//   -Dchat.node=a -Dchat.cluster=a=127.0.0.1:9101,b=127.0.0.1:9102,c=127.0.0.1:9103
+//
+// Todo quadro tem como primeiro campo o nó de origem. O dono de cada sala é
+// escolhido pelo anel de hash consistente; a sala global usa a chave vazia.
+//
+// Cada nó manda LINK_PING aos outros a cada PING_MS; um nó de quem nada chega
+// há NODE_TIMEOUT_MS é dado como fora (Listener.onNodeDown) e, quando volta a
+// falar, troca a presença de novo como num LINK_HELLO.
+//
+// Só os endereços de chat.cluster falam com a ligação: datagramas de outras
+// origens são descartados antes da camada confiável, e um quadro cujo nó de
+// origem declarado não corresponde ao endereço de onde veio é ignorado.
+class ClusterLink {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    // Usuários por quadro de presença, para o quadro caber num datagrama
+    private static final int PRESENCE_BATCH = 32;
+    private static final int RECEIVE_BUFFER = 65507;
+    private static final long PING_MS = 2000;
+    private static final long NODE_TIMEOUT_MS = 10000;
+    
+    private final String selfId;
+    private final Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+    private final Set<InetSocketAddress> peerAddresses = new HashSet<>();
+    private final HashRing ring;
+    private final DatagramSocket socket;
+    private final ReliableTransport reliable;
+    private final Listener listener;
+    private volatile boolean running;
+    // Último quadro recebido de cada nó e quais estão dados como fora
+    private final Map<String, Long> lastHeard = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> down = new ConcurrentHashMap<>();
+    private ScheduledExecutorService pinger;
+    
+    public ClusterLink(String selfId, Map<String, InetSocketAddress> nodes, Listener listener) throws IOException {
+        if (!nodes.containsKey(selfId)) {
+            throw new IllegalArgumentException("Nó " + selfId + " não está em chat.cluster");
+        }
+        this.selfId = selfId;
+        this.listener = listener;
+        this.ring = new HashRing(nodes.keySet());
+        for (Map.Entry<String, InetSocketAddress> node : nodes.entrySet()) {
+            if (!node.getKey().equals(selfId)) {
+                peers.put(node.getKey(), node.getValue());
+                peerAddresses.add(node.getValue());
+            }
+        }
+        socket = new DatagramSocket(nodes.get(selfId));
+        reliable = new ReliableTransport(
+            (data, length, peer) -> socket.send(new DatagramPacket(data, length, peer)),
+            (data, offset, length, peer) -> onFrame(ByteBuffer.wrap(data, offset, length), peer));
+    }
+    
+    // null se o servidor roda sozinho (sem -Dchat.cluster)
+    public static ClusterLink fromProperties(Listener listener) throws IOException {
+        String cluster = System.getProperty("chat.cluster");
+        if (cluster == null || cluster.isBlank()) {
+            return null;
+        }
+        String selfId = System.getProperty("chat.node");
+        if (selfId == null || selfId.isBlank()) {
+            throw new IOException("chat.cluster exige -Dchat.node com o id deste nó");
+        }
+        
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String entry : cluster.split(",")) {
+            String[] idAndAddress = entry.trim().split("=", 2);
+            int colon = idAndAddress.length == 2 ? idAndAddress[1].lastIndexOf(':') : -1;
+            try {
+                if (colon < 0) {
+                    throw new NumberFormatException();
+                }
+                nodes.put(idAndAddress[0], new InetSocketAddress(
+                    idAndAddress[1].substring(0, colon),
+                    Integer.parseInt(idAndAddress[1].substring(colon + 1))));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Entrada inválida em chat.cluster (esperado id=host:porta): " + entry);
+            }
+        }
+        if (!nodes.containsKey(selfId)) {
+            throw new IOException("Nó " + selfId + " (chat.node) não está em chat.cluster");
+        }
+        return new ClusterLink(selfId, nodes, listener);
+    }
+    
+    public void start() {
+        running = true;
+        Thread receiver = new Thread(this::receiveLoop, "chat-cluster-link");
+        receiver.setDaemon(true);
+        receiver.start();
+        
+        // Pede a presença dos outros nós (eles respondem com seus clientes)
+        long now = System.currentTimeMillis();
+        for (String peer : peers.keySet()) {
+            lastHeard.put(peer, now);
+            down.put(peer, false);
+            send(peer, new WireProtocol.Writer(WireProtocol.LINK_HELLO, 0).putString(selfId));
+        }
+        
+        pinger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-cluster-ping");
+            t.setDaemon(true);
+            return t;
+        });
+        pinger.scheduleAtFixedRate(this::checkPeers, PING_MS, PING_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    private void checkPeers() {
+        long now = System.currentTimeMillis();
+        for (String peer : peers.keySet()) {
+            send(peer, new WireProtocol.Writer(WireProtocol.LINK_PING, 0).putString(selfId));
+            if (now - lastHeard.get(peer) > NODE_TIMEOUT_MS && !down.put(peer, true)) {
+                LOG.warn("Nó {} sem resposta, presença e inscrições descartadas", peer);
+                try {
+                    listener.onNodeDown(peer);
+                } catch (RuntimeException e) {
+                    LOG.error("Erro descartando o nó {}: {}", peer, e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Quadro de um nó conhecido: renova o prazo e, se ele estava fora, troca a presença
+    private void heard(String origin) {
+        lastHeard.put(origin, System.currentTimeMillis());
+        if (Boolean.TRUE.equals(down.put(origin, false))) {
+            LOG.info("Nó {} voltou", origin);
+            send(origin, new WireProtocol.Writer(WireProtocol.LINK_HELLO, 0).putString(selfId));
+            listener.onHello(origin);
+        }
+    }
+    
+    public void shutdown() {
+        running = false;
+        if (pinger != null) {
+            pinger.shutdownNow();
+        }
+        reliable.shutdown();
+        socket.close();
+    }
+    
+    public String getSelfId() { return selfId; }
+    public int getNodeCount() { return peers.size() + 1; }
+    
+    public String ownerOf(String room) {
+        return ring.ownerOf(room);
+    }
+    
+    public boolean owns(String room) {
+        return selfId.equals(ring.ownerOf(room));
+    }
+    
+    // Encaminha a mensagem ao dono da sala, que define a sequência
+    public void postToOwner(String room, String username, byte[] text) {
+        send(ownerOf(room), new WireProtocol.Writer(WireProtocol.LINK_ROOM_POST, 0)
+                .putString(selfId).putString(room).putString(username).putUtf8(text));
+    }
+    
+    // Mensagem já sequenciada pelo dono, replicada para outro nó
+    public void sendRoomMessage(String node, String room, Message msg) {
+        send(node, encodeRoomMessage(room, msg));
+    }
+    
+    public void broadcastRoomMessage(String room, Message msg) {
+        byte[] frame = encodeRoomMessage(room, msg).toByteArray();
+        for (InetSocketAddress peer : peers.values()) {
+            reliable.send(peer, frame);
+        }
+    }
+    
+    // Interesse de um nó numa sala: o dono só replica para quem tem inscritos
+    public void subscribe(String room, long lastSeq) {
+        send(ownerOf(room), new WireProtocol.Writer(WireProtocol.LINK_SUBSCRIBE, 0)
+                .putString(selfId).putString(room).putLong(lastSeq));
+    }
+    
+    public void unsubscribe(String room) {
+        send(ownerOf(room), new WireProtocol.Writer(WireProtocol.LINK_UNSUBSCRIBE, 0)
+                .putString(selfId).putString(room));
+    }
+    
+    public void broadcastPresence(List<ClientInfo> changed) {
+        for (String peer : peers.keySet()) {
+            sendPresence(peer, changed);
+        }
+    }
+    
+    public void sendPresence(String node, List<ClientInfo> clients) {
+        for (int from = 0; from < clients.size(); from += PRESENCE_BATCH) {
+            WireProtocol.Writer frame = new WireProtocol.Writer(WireProtocol.LINK_PRESENCE, 0).putString(selfId);
+            for (ClientInfo client : clients.subList(from, Math.min(clients.size(), from + PRESENCE_BATCH))) {
+                frame.putString(client.getUsername()).putLong(client.isOnline() ? 1 : 0);
+            }
+            send(node, frame);
+        }
+    }
+    
+    private WireProtocol.Writer encodeRoomMessage(String room, Message msg) {
+        return new WireProtocol.Writer(WireProtocol.LINK_ROOM_MESSAGE, 0)
+                .putString(selfId)
+                .putString(room)
+                .putString(msg.getUsername())
+                .putUtf8(msg.getTextBytes())
+                .putString(msg.getTimestamp())
+                .putLong(msg.getSequence());
+    }
+    
+    private void send(String node, WireProtocol.Writer frame) {
+        InetSocketAddress peer = peers.get(node);
+        if (peer != null) {
+            reliable.send(peer, frame.toByteArray());
+        }
+    }
+    
+    private void receiveLoop() {
+        byte[] buffer = new byte[RECEIVE_BUFFER];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                InetSocketAddress source = (InetSocketAddress) packet.getSocketAddress();
+                if (peerAddresses.contains(source)
+                        && ReliableTransport.isEnvelope(buffer, 0, packet.getLength())) {
+                    reliable.onPacket(buffer, 0, packet.getLength(), source);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    LOG.error("Erro na ligação do cluster: {}", e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Entregue em ordem pela camada confiável, na thread da ligação
+    private void onFrame(ByteBuffer frame, InetSocketAddress source) {
+        if (!WireProtocol.isFrame(frame)) {
+            return;
+        }
+        byte opcode = WireProtocol.opcode(frame);
+        int fields = WireProtocol.fieldCount(frame);
+        WireProtocol.skipHeader(frame);
+        String origin;
+        try {
+            origin = WireProtocol.readString(frame);
+        } catch (RuntimeException e) {
+            return;
+        }
+        // O nó declarado tem de ser o dono do endereço de onde o quadro veio
+        if (!source.equals(peers.get(origin))) {
+            LOG.warn("Quadro de {} declarando o nó {} descartado", source, origin);
+            return;
+        }
+        
+        try {
+            heard(origin);
+            switch (opcode) {
+                case WireProtocol.LINK_PING:
+                    break;
+                case WireProtocol.LINK_HELLO:
+                    listener.onHello(origin);
+                    break;
+                case WireProtocol.LINK_ROOM_POST: {
+                    String room = WireProtocol.readString(frame);
+                    String username = WireProtocol.readString(frame);
+                    listener.onRoomPost(origin, room, username, WireProtocol.readBytes(frame));
+                    break;
+                }
+                case WireProtocol.LINK_ROOM_MESSAGE: {
+                    String room = WireProtocol.readString(frame);
+                    String username = WireProtocol.readString(frame);
+                    String text = WireProtocol.readString(frame);
+                    String timestamp = WireProtocol.readString(frame);
+                    long seq = WireProtocol.readLong(frame);
+                    listener.onRoomMessage(room, new Message(seq, username, text, timestamp));
+                    break;
+                }
+                case WireProtocol.LINK_SUBSCRIBE: {
+                    String room = WireProtocol.readString(frame);
+                    listener.onSubscribe(origin, room, WireProtocol.readLong(frame));
+                    break;
+                }
+                case WireProtocol.LINK_UNSUBSCRIBE:
+                    listener.onUnsubscribe(origin, WireProtocol.readString(frame));
+                    break;
+                case WireProtocol.LINK_PRESENCE: {
+                    List<String> users = new ArrayList<>();
+                    List<Boolean> online = new ArrayList<>();
+                    for (int i = 1; i + 2 <= fields; i += 2) {
+                        users.add(WireProtocol.readString(frame));
+                        online.add(WireProtocol.readLong(frame) == 1);
+                    }
+                    listener.onPresence(origin, users, online);
+                    break;
+                }
+                default:
+                    LOG.warn("Opcode desconhecido na ligação do cluster: {}", opcode);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Erro processando quadro do nó {}: {}", origin, e.getMessage());
+        }
+    }
+    
+    interface Listener {
+        void onHello(String node);
+        void onRoomPost(String origin, String room, String username, byte[] text);
+        void onRoomMessage(String room, Message msg);
+        void onSubscribe(String node, String room, long lastSeq);
+        void onUnsubscribe(String node, String room);
+        void onPresence(String node, List<String> users, List<Boolean> online);
+        // Nó sem sinal de vida há NODE_TIMEOUT_MS (chamado na thread do ping)
+        void onNodeDown(String node);
+    }
+}
@@ -0,0 +1,21 @@
+package chatudp;
+
+// Comando já decodificado (de texto ou de quadro binário), pronto para as lanes
+class Command {
+    final String name;
+    final boolean binary;
+    final int requestId;
+    String username;
+    // Texto da mensagem em UTF-8, como chegou (nunca decodificado no servidor)
+    byte[] text;
+    String room;
+    long lastSeq;
+    int maxBytes = -1;
+    int protocolVersion;
+    
+    public Command(String name, int frameVersion, int requestId) {
+        this.name = name;
+        this.binary = frameVersion > 0;
+        this.requestId = requestId;
+    }
+}
@@ -0,0 +1,71 @@
+package chatudp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Estágio de processamento com N filas ("lanes") independentes, cada uma
+// atendida por uma única thread. A lane é escolhida pelo hash da chave
+// (normalmente o nome do usuário), então os comandos de um mesmo usuário
+// são executados em ordem, enquanto usuários diferentes rodam em paralelo.
+class CommandPipeline {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private final Lane[] lanes;
+    private final LongAdder dropped = new LongAdder();
+    
+    public CommandPipeline(int laneCount, int queueCapacity) {
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane("chat-lane-" + i, queueCapacity);
+            lanes[i].start();
+        }
+    }
+    
+    // Não bloqueia o receptor: se a lane estiver cheia o comando é descartado,
+    // como aconteceria com um datagrama perdido
+    public boolean submit(int key, Runnable task) {
+        Lane lane = lanes[laneFor(key)];
+        if (!lane.queue.offer(task)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+    
+    private int laneFor(int key) {
+        // Espalha os bits altos para não depender da qualidade do hashCode
+        int h = key ^ (key >>> 16);
+        return (h & 0x7fffffff) % lanes.length;
+    }
+    
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+    }
+    
+    public int getLaneCount() { return lanes.length; }
+    public long getDropped() { return dropped.sum(); }
+    
+    private static class Lane extends Thread {
+        private final ArrayBlockingQueue<Runnable> queue;
+        
+        Lane(String name, int capacity) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    queue.take().run();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (RuntimeException e) {
+                    LOG.error("Erro processando comando: {}", e.getMessage());
+                }
+            }
+        }
+    }
+}
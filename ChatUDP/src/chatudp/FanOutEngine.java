@@ -0,0 +1,213 @@
+package chatudp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Motor de difusão (broadcast). O payload é codificado uma única vez por
+// formato de fio (ClientInfo.getWireFormat) num buffer somente-leitura
+// compartilhado e enviado a todos os destinatários
+// por threads de envio dedicadas. Cada thread atende uma faixa fixa dos
+// destinatários (hash do usuário % número de threads) e reaproveita sua própria
+// visão do buffer e seu próprio DatagramPacket, sem alocar por envio.
+class FanOutEngine {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private static final AsyncLogger.Sampled QUEUE_FULL = LOG.sampled(AsyncLogger.Level.WARN, AsyncLogger.OVERLOAD_SAMPLE);
+    private final DatagramChannel channel;
+    private final DatagramSocket socket;
+    private final ReliableTransport reliable;
+    private final Sender[] senders;
+    private final FanOutListener listener;
+    // Payloads maiores que isto vão fragmentados para quem sabe remontar
+    private final int fragmentSize;
+    
+    private final LongAdder fanOuts = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    // channel pode ser null (modo SOCKET); nesse caso os envios usam o socket.
+    // reliable pode ser null; clientes da camada confiável passam por ela.
+    public FanOutEngine(DatagramChannel channel, DatagramSocket socket, ReliableTransport reliable,
+                        int threads, int queueCapacity, int fragmentSize, FanOutListener listener) {
+        this.channel = channel;
+        this.fragmentSize = fragmentSize;
+        this.socket = socket;
+        this.reliable = reliable;
+        this.listener = listener;
+        this.senders = new Sender[threads];
+        for (int i = 0; i < threads; i++) {
+            senders[i] = new Sender("chat-fanout-" + i, i, queueCapacity);
+            senders[i].start();
+        }
+    }
+    
+    public void broadcast(String label, byte[] text, byte[] binary, Collection<ClientInfo> recipients) {
+        broadcast(label, new byte[][] { text, binary, binary }, recipients);
+    }
+    
+    // Um payload por formato de fio; null pula os clientes daquele formato
+    public void broadcast(String label, byte[][] byFormat, Collection<ClientInfo> recipients) {
+        Payload[] payloads = new Payload[byFormat.length];
+        for (int i = 0; i < byFormat.length; i++) {
+            payloads[i] = byFormat[i] != null ? new Payload(byFormat[i], fragmentSize) : null;
+        }
+        Job job = new Job(label, payloads, recipients, senders.length);
+        for (Sender sender : senders) {
+            if (!sender.queue.offer(job)) {
+                QUEUE_FULL.log("Fila de difusão cheia, {} descartado", label, null);
+                job.finishStripe(this, 0);
+            }
+        }
+    }
+    
+    public void shutdown() {
+        for (Sender sender : senders) {
+            sender.interrupt();
+        }
+    }
+    
+    private void complete(Job job) {
+        long elapsed = System.nanoTime() - job.startNanos;
+        fanOuts.increment();
+        totalNanos.add(elapsed);
+        maxNanos.accumulateAndGet(elapsed, Math::max);
+        if (listener != null) {
+            listener.onFanOut(job.label, job.sent.get(), elapsed);
+        }
+    }
+    
+    public long getFanOuts() { return fanOuts.sum(); }
+    public long getMaxNanos() { return maxNanos.get(); }
+    public long getAverageNanos() {
+        long count = fanOuts.sum();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+    
+    // Notificado ao fim de cada difusão com o número de envios e a duração total
+    interface FanOutListener {
+        void onFanOut(String label, int recipients, long elapsedNanos);
+    }
+    
+    private static class Payload {
+        final byte[] data;
+        final ByteBuffer buffer;
+        // Fragmentado uma vez por difusão; null se o payload cabe inteiro
+        final byte[][] fragments;
+        
+        Payload(byte[] data, int fragmentSize) {
+            this.data = data;
+            this.buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            this.fragments = data.length > fragmentSize ? Fragmenter.split(data, fragmentSize) : null;
+        }
+    }
+    
+    private static class Job {
+        final String label;
+        final Payload[] payloads;
+        final Collection<ClientInfo> recipients;
+        final long startNanos = System.nanoTime();
+        final AtomicInteger pendingStripes;
+        final AtomicInteger sent = new AtomicInteger();
+        
+        Job(String label, Payload[] payloads, Collection<ClientInfo> recipients, int stripes) {
+            this.label = label;
+            this.payloads = payloads;
+            this.recipients = recipients;
+            this.pendingStripes = new AtomicInteger(stripes);
+        }
+        
+        void finishStripe(FanOutEngine engine, int count) {
+            sent.addAndGet(count);
+            if (pendingStripes.decrementAndGet() == 0) {
+                engine.complete(this);
+            }
+        }
+    }
+    
+    private class Sender extends Thread {
+        private final int stripe;
+        private final ArrayBlockingQueue<Job> queue;
+        private final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        private final ByteBuffer[] views = new ByteBuffer[ClientInfo.WIRE_FORMATS];
+        
+        Sender(String name, int stripe, int capacity) {
+            super(name);
+            this.stripe = stripe;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                job.finishStripe(FanOutEngine.this, send(job));
+            }
+        }
+        
+        private int send(Job job) {
+            // Uma visão por formato e por thread: a posição do buffer compartilhado não é tocada
+            for (int i = 0; i < views.length; i++) {
+                views[i] = channel != null && job.payloads[i] != null ? job.payloads[i].buffer.duplicate() : null;
+            }
+            int count = 0;
+            
+            for (ClientInfo client : job.recipients) {
+                if (!client.isOnline()) {
+                    continue;
+                }
+                if ((client.getUsername().hashCode() & 0x7fffffff) % senders.length != stripe) {
+                    continue;
+                }
+                int format = client.getWireFormat();
+                Payload payload = job.payloads[format];
+                if (payload == null) {
+                    continue;
+                }
+                try {
+                    if (payload.fragments != null && client.acceptsFragments()) {
+                        for (byte[] fragment : payload.fragments) {
+                            sendRaw(client, fragment);
+                        }
+                    } else if (reliable != null && reliable.isReliablePeer(client.getSocketAddress())) {
+                        reliable.send(client.getSocketAddress(), payload.data);
+                    } else if (channel != null) {
+                        ByteBuffer view = views[format];
+                        view.rewind();
+                        channel.send(view, client.getSocketAddress());
+                    } else {
+                        packet.setData(payload.data);
+                        packet.setSocketAddress(client.getSocketAddress());
+                        socket.send(packet);
+                    }
+                    count++;
+                } catch (IOException e) {
+                    LOG.error("Erro enviando mensagem: {}", e.getMessage());
+                }
+            }
+            return count;
+        }
+        
+        private void sendRaw(ClientInfo client, byte[] data) throws IOException {
+            if (reliable != null && reliable.isReliablePeer(client.getSocketAddress())) {
+                reliable.send(client.getSocketAddress(), data);
+            } else {
+                packet.setData(data);
+                packet.setSocketAddress(client.getSocketAddress());
+                socket.send(packet);
+            }
+        }
+    }
+}
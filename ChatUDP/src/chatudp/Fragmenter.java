@@ -0,0 +1,77 @@
+package chatudp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Divide payloads maiores que o tamanho de fragmento em pedaços com
+// cabeçalho próprio, remontados do outro lado pelo Reassembler:
+//
+//   magic(1) id(4) índice(2) total(2) dados...
+//
+// O byte mágico não colide com texto, com o protocolo binário nem com o
+// envelope da camada confiável, então fragmentos convivem na mesma porta.
+// Com a camada confiável a fragmentação fica acima dela: cada fragmento é um
+// payload confiável separado.
+final class Fragmenter {
+    static final byte MAGIC = (byte) 0xC9;
+    static final int HEADER_SIZE = 9;
+    static final int MAX_FRAGMENTS = 0xFFFF;
+    // Cabe num quadro Ethernet com folga para IP/UDP e o envelope confiável
+    private static final int DEFAULT_FRAGMENT_SIZE = 1400;
+    // Menor fragmento aceito (exceto o último de cada mensagem); limita quantos
+    // pedaços uma mensagem pode anunciar do outro lado
+    static final int MIN_FRAGMENT_SIZE = 512;
+    
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    
+    private Fragmenter() {
+    }
+    
+    // Tamanho dos dados de cada fragmento (-Dchat.fragmentSize, no mínimo
+    // MIN_FRAGMENT_SIZE)
+    static int fragmentSize() {
+        return Math.max(MIN_FRAGMENT_SIZE, Integer.getInteger("chat.fragmentSize", DEFAULT_FRAGMENT_SIZE));
+    }
+    
+    static boolean isFragment(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE && data[offset] == MAGIC;
+    }
+    
+    // Payload que cabe num fragmento volta sozinho e sem cabeçalho
+    static byte[][] split(byte[] payload, int fragmentSize) {
+        if (payload.length <= fragmentSize) {
+            return new byte[][] { payload };
+        }
+        int count = (payload.length + fragmentSize - 1) / fragmentSize;
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Payload grande demais: " + payload.length + " bytes");
+        }
+        
+        int id = nextId.getAndIncrement();
+        byte[][] fragments = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int from = i * fragmentSize;
+            int length = Math.min(fragmentSize, payload.length - from);
+            fragments[i] = ByteBuffer.allocate(HEADER_SIZE + length)
+                    .put(MAGIC)
+                    .putInt(id)
+                    .putShort((short) i)
+                    .putShort((short) count)
+                    .put(payload, from, length)
+                    .array();
+        }
+        return fragments;
+    }
+    
+    static int messageId(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset + 1, 4).getInt();
+    }
+    
+    static int index(byte[] data, int offset) {
+        return ((data[offset + 5] & 0xFF) << 8) | (data[offset + 6] & 0xFF);
+    }
+    
+    static int count(byte[] data, int offset) {
+        return ((data[offset + 7] & 0xFF) << 8) | (data[offset + 8] & 0xFF);
+    }
+}
@@ -0,0 +1,49 @@
+package chatudp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Anel de hash consistente: cada nó ocupa vários pontos virtuais no anel e a
+// chave pertence ao primeiro ponto no sentido horário. Com pontos virtuais as
+// salas se espalham de forma equilibrada, e adicionar ou remover um nó só
+// muda o dono das chaves vizinhas aos pontos dele.
+class HashRing {
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+    
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    
+    public HashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+    
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+    
+    public String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+    
+    // FNV-1a de 64 bits com uma mistura final, para espalhar chaves parecidas
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
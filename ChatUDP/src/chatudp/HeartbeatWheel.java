@@ -0,0 +1,118 @@
+package chatudp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Roda de temporização (hashed timing wheel) para expirar clientes sem
+// heartbeat. Cada cliente fica no balde do tick em que vence (último
+// heartbeat + timeout); um heartbeat o move para o balde novo. A roda tem
+// mais baldes que ticks no timeout, então tudo que está no balde do tick
+// atual já venceu: o custo de cada tick é proporcional só aos expirados,
+// não ao total de clientes registrados.
+class HeartbeatWheel {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private final long tickMs;
+    private final long timeoutMs;
+    private final List<Set<ClientInfo>> buckets;
+    private final int mask;
+    private final ExpiryListener listener;
+    private final ScheduledExecutorService ticker;
+    private final LongAdder expired = new LongAdder();
+    private long nextTick;
+    
+    public HeartbeatWheel(long tickMs, long timeoutMs, ExpiryListener listener) {
+        this.tickMs = tickMs;
+        this.timeoutMs = timeoutMs;
+        this.listener = listener;
+        
+        int needed = (int) (timeoutMs / tickMs) + 2;
+        int size = Integer.highestOneBit(needed - 1) << 1;
+        buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(ConcurrentHashMap.newKeySet());
+        }
+        mask = size - 1;
+        nextTick = System.currentTimeMillis() / tickMs;
+        
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-heartbeat-wheel");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+    
+    // Agenda (ou reagenda) a expiração a partir do último heartbeat do cliente
+    public void schedule(ClientInfo client) {
+        int slot = (int) ((client.getLastHeartbeat() + timeoutMs) / tickMs) & mask;
+        synchronized (client) {
+            int current = client.getWheelSlot();
+            if (current == slot) return;
+            if (current >= 0) {
+                buckets.get(current).remove(client);
+            }
+            buckets.get(slot).add(client);
+            client.setWheelSlot(slot);
+        }
+    }
+    
+    public void cancel(ClientInfo client) {
+        synchronized (client) {
+            int current = client.getWheelSlot();
+            if (current >= 0) {
+                buckets.get(current).remove(client);
+                client.setWheelSlot(-1);
+            }
+        }
+    }
+    
+    // Processa todos os ticks já encerrados (inclusive os atrasados)
+    private void advance() {
+        try {
+            long now = System.currentTimeMillis();
+            List<ClientInfo> expiredNow = new ArrayList<>();
+            
+            while ((nextTick + 1) * tickMs <= now) {
+                int slot = (int) (nextTick & mask);
+                for (ClientInfo client : buckets.get(slot)) {
+                    synchronized (client) {
+                        // Um heartbeat concorrente pode ter movido o cliente de balde
+                        if (client.getWheelSlot() == slot
+                                && client.getLastHeartbeat() + timeoutMs <= now) {
+                            buckets.get(slot).remove(client);
+                            client.setWheelSlot(-1);
+                            expiredNow.add(client);
+                        }
+                    }
+                }
+                nextTick++;
+            }
+            
+            if (!expiredNow.isEmpty()) {
+                expired.add(expiredNow.size());
+                listener.onExpired(expiredNow);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Erro na roda de heartbeat: {}", e.getMessage());
+        }
+    }
+    
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+    
+    public long getExpiredCount() { return expired.sum(); }
+    public long getTickMs() { return tickMs; }
+    public long getTimeoutMs() { return timeoutMs; }
+    
+    // Recebe, de uma vez, todos os clientes que expiraram no mesmo avanço da roda
+    interface ExpiryListener {
+        void onExpired(List<ClientInfo> clients);
+    }
+}
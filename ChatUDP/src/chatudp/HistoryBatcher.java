@@ -0,0 +1,114 @@
+package chatudp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Empacota mensagens do histórico em datagramas do tamanho do payload
+// permitido pelo caminho. Formato de cada página:
+//
+//   HISTORY_BATCH|<página>|<1 se há mais páginas, 0 na última>|<última seq coberta>\n
+//   <usuário>|<texto>|<timestamp>|<seq>\n
+//   ...
+//
+// Quebras de linha e barras invertidas de usuário e texto vão escapadas
+// (Message.toTextRecord), então cada linha é exatamente um registro.
+//
+// Para clientes do protocolo binário a página é um quadro HISTORY_BATCH com
+// os campos página, mais, última seq e, por registro, usuário, texto,
+// timestamp e seq.
+//
+// O histórico de uma sala usa ROOM_HISTORY_BATCH|<sala>|<página>|... no texto
+// e, no binário, o quadro ROOM_HISTORY_BATCH com a sala como primeiro campo.
+class HistoryBatcher {
+    // Espaço reservado para o cabeçalho da página
+    private static final int HEADER_RESERVE = 64;
+    
+    private final int bodyLimit;
+    private final boolean binary;
+    private final int requestId;
+    private final String room;
+    private final PageSender sender;
+    private final ByteArrayOutputStream body;
+    private int page = 0;
+    private long pageLastSeq = 0;
+    private int pageRecords = 0;
+    
+    public HistoryBatcher(int maxPayload, PageSender sender) {
+        this(maxPayload, false, 0, sender);
+    }
+    
+    public HistoryBatcher(int maxPayload, boolean binary, int requestId, PageSender sender) {
+        this(maxPayload, binary, requestId, null, sender);
+    }
+    
+    public HistoryBatcher(int maxPayload, boolean binary, int requestId, String room, PageSender sender) {
+        int roomBytes = room == null ? 0 : room.getBytes(StandardCharsets.UTF_8).length + 2;
+        this.bodyLimit = Math.max(1, maxPayload - HEADER_RESERVE - roomBytes);
+        this.binary = binary;
+        this.requestId = requestId;
+        this.room = room;
+        this.sender = sender;
+        this.body = new ByteArrayOutputStream(bodyLimit);
+    }
+    
+    public void add(Message msg) {
+        byte[] record = binary ? encodeBinary(msg)
+                : msg.toTextRecord("", "\n");
+        
+        // Um registro maior que o limite vai sozinho numa página
+        if (body.size() > 0 && body.size() + record.length > bodyLimit) {
+            flush(true, pageLastSeq);
+        }
+        body.write(record, 0, record.length);
+        pageLastSeq = msg.getSequence();
+        pageRecords++;
+    }
+    
+    private static byte[] encodeBinary(Message msg) {
+        return new WireProtocol.Writer(WireProtocol.HISTORY_BATCH, 0)
+                .putString(msg.getUsername())
+                .putUtf8(msg.getTextBytes())
+                .putString(msg.getTimestamp())
+                .putLong(msg.getSequence())
+                .fieldsToByteArray();
+    }
+    
+    // Envia a última página; sempre existe, mesmo vazia, e marca o fim da sincronização
+    public void finish(long lastSeq) {
+        flush(false, lastSeq);
+    }
+    
+    public int getPages() { return page; }
+    
+    private void flush(boolean more, long lastSeq) {
+        byte[] records = body.toByteArray();
+        byte[] data;
+        
+        if (binary) {
+            WireProtocol.Writer frame = room == null
+                    ? new WireProtocol.Writer(WireProtocol.HISTORY_BATCH, requestId)
+                    : new WireProtocol.Writer(WireProtocol.ROOM_HISTORY_BATCH, requestId).putString(room);
+            data = frame.putLong(page)
+                    .putLong(more ? 1 : 0)
+                    .putLong(lastSeq)
+                    .putEncoded(records, records.length, pageRecords * 4)
+                    .toByteArray();
+        } else {
+            String prefix = room == null ? "HISTORY_BATCH|" : "ROOM_HISTORY_BATCH|" + room + "|";
+            byte[] header = (prefix + page + "|" + (more ? 1 : 0) + "|" + lastSeq + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            data = new byte[header.length + records.length];
+            System.arraycopy(header, 0, data, 0, header.length);
+            System.arraycopy(records, 0, data, header.length, records.length);
+        }
+        
+        sender.send(data);
+        body.reset();
+        pageRecords = 0;
+        page++;
+    }
+    
+    interface PageSender {
+        void send(byte[] data);
+    }
+}
@@ -0,0 +1,83 @@
+package chatudp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histograma de latências no esquema do HdrHistogram: valores abaixo de 64
+// têm balde próprio e, a partir daí, cada potência de dois se divide em 32
+// baldes, o que mantém o erro relativo abaixo de ~3% em qualquer escala com
+// memória fixa. Os contadores são atômicos para muitas threads registrarem
+// ao mesmo tempo sem trava.
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 64;
+    private static final int HALF = SUB_BUCKETS / 2;
+    // Até 2^46 unidades (em microssegundos, mais de dois anos)
+    private static final int MAX_SHIFT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + MAX_SHIFT * HALF);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // Maior valor equivalente ao balde em que cai o percentil (0 a 100)
+    public long getValueAtPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestEquivalent(i);
+            }
+        }
+        return highestEquivalent(counts.length() - 1);
+    }
+
+    public long getMax() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return highestEquivalent(i);
+            }
+        }
+        return 0;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Guarda os 6 bits mais altos; shift >= 1 aqui
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - 5, MAX_SHIFT);
+        long sub = Math.min(value >>> shift, SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (sub - HALF);
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
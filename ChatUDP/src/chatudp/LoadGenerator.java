@@ -0,0 +1,535 @@
+package chatudp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Gerador de carga sem interface: milhares de clientes simulados, cada um
+// com o próprio socket e duas virtual threads (envio e recepção), falando o
+// protocolo real do ChatServer (REGISTER/HEARTBEAT/MESSAGE/GET_MESSAGES) ou
+// do ServerUDP (***REGISTER***, ***SUBSCRIBE***, SEND_MESSAGE, ***ATUALIZE***).
+//
+// Cada MESSAGE leva no texto o System.nanoTime() do envio; quem recebe a
+// difusão mede a latência de ponta a ponta. Como todos os clientes estão na
+// mesma JVM, os relógios são comparáveis. Perda = 1 - recebidas / (enviadas
+// x clientes recebendo), contando só o que foi enviado depois da rampa.
+//
+// Modo closed (só serverudp): sem taxa fixa, cada cliente manda um pedido
+// com prefixo "#id#" e só manda o próximo quando a resposta com o mesmo id
+// chega (ou em REPLY_TIMEOUT_MS). Mede respostas/s e a latência de ida e
+// volta, a vazão máxima que o servidor sustenta com N pedidos em voo:
+//
+//   -Dload.target=serverudp -Dload.mode=closed -Dload.mix=message=10,history=90
+//   -Dload.clients=16 -Dload.duration=5   (comparar com -Dserverudp.modo=...)
+//
+// Propriedades (-Dload.*):
+//   target     chat (padrão) ou serverudp
+//   mode       open (padrão, taxa fixa por cliente) ou closed
+//   host/port  servidor (localhost; 8888 para chat, 6789 para serverudp)
+//   clients    clientes simulados (1000)
+//   rate       operações por segundo por cliente (0.2)
+//   mix        pesos das operações (message=80,history=15,heartbeat=5)
+//   duration   segundos de medição depois da rampa (30)
+//   rampMs     janela em que os clientes se registram (2000)
+//   binary     chat: pede o protocolo binário no REGISTER (true)
+//
+// Do mesmo host, todos os clientes dividem um endereço: rode o ChatServer
+// com -Dchat.rate=false para o limite por endereço não virar a medida (e o
+// ServerUDP com -Dserverudp.assinantes.porIp acima do número de clientes).
+public class LoadGenerator {
+    enum Target { CHAT, SERVERUDP }
+
+    // Prefixo do texto das mensagens medidas; maiúsculo porque o ServerUDP
+    // grava o texto em maiúsculas
+    private static final String MARK = "LT:";
+    private static final int RECEIVE_BUFFER = 65507;
+    private static final long KEEPALIVE_MS = 5000;
+    private static final long DRAIN_MS = 2000;
+    private static final long REPLY_TIMEOUT_MS = 1000;
+
+    private final Target target;
+    private final InetAddress host;
+    private final int port;
+    private final int clientCount;
+    private final double rate;
+    private final int[] mix = new int[3];
+    private final long durationMs;
+    private final long rampMs;
+    private final boolean binary;
+    private final boolean closedLoop;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder historyRequests = new LongAdder();
+    private final LongAdder heartbeats = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    // Modo closed: respostas casadas e pedidos que venceram sem resposta
+    private final LongAdder replies = new LongAdder();
+    private final LongAdder replyTimeouts = new LongAdder();
+    // Clientes cujo registro (e, no ServerUDP, a assinatura) foi confirmado
+    private final LongAdder receivers = new LongAdder();
+
+    private volatile boolean running = true;
+    // Só o que sai depois da rampa entra na medida
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    private static final int OP_MESSAGE = 0;
+    private static final int OP_HISTORY = 1;
+    private static final int OP_HEARTBEAT = 2;
+
+    LoadGenerator() throws IOException {
+        target = Target.valueOf(System.getProperty("load.target", "chat").toUpperCase());
+        host = InetAddress.getByName(System.getProperty("load.host", "localhost"));
+        port = Integer.getInteger("load.port", target == Target.CHAT ? 8888 : 6789);
+        clientCount = Integer.getInteger("load.clients", 1000);
+        rate = Double.parseDouble(System.getProperty("load.rate", "0.2"));
+        durationMs = Long.getLong("load.duration", 30) * 1000;
+        rampMs = Long.getLong("load.rampMs", 2000);
+        binary = Boolean.parseBoolean(System.getProperty("load.binary", "true"));
+        parseMix(System.getProperty("load.mix", "message=80,history=15,heartbeat=5"));
+        closedLoop = "closed".equals(System.getProperty("load.mode", "open"));
+        if (closedLoop && target != Target.SERVERUDP) {
+            throw new IllegalArgumentException("load.mode=closed só com load.target=serverudp");
+        }
+    }
+
+    private void parseMix(String spec) {
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.trim().split("=");
+            int weight = Integer.parseInt(pair[1].trim());
+            switch (pair[0].trim()) {
+                case "message": mix[OP_MESSAGE] = weight; break;
+                case "history": mix[OP_HISTORY] = weight; break;
+                case "heartbeat": mix[OP_HEARTBEAT] = weight; break;
+                default: throw new IllegalArgumentException("Operação desconhecida em load.mix: " + pair[0]);
+            }
+        }
+        if (mix[OP_MESSAGE] + mix[OP_HISTORY] + mix[OP_HEARTBEAT] <= 0) {
+            throw new IllegalArgumentException("load.mix sem pesos positivos");
+        }
+    }
+
+    void run() throws InterruptedException {
+        System.out.println("Carga: " + clientCount + " clientes contra " + target + " em "
+            + host.getHostAddress() + ":" + port + ", "
+            + (closedLoop ? "um pedido em voo cada" : rate + " op/s cada") + ", "
+            + (durationMs / 1000) + " s");
+
+        CountDownLatch ready = new CountDownLatch(clientCount);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            SimClient client;
+            try {
+                client = new SimClient("load" + i);
+            } catch (IOException e) {
+                System.err.println("Não abriu o socket do cliente " + i + ": " + e.getMessage());
+                ready.countDown();
+                continue;
+            }
+            long startDelay = rampMs * i / Math.max(1, clientCount);
+            threads.add(Thread.ofVirtual().name("load-rx-" + i).start(client::receiveLoop));
+            threads.add(Thread.ofVirtual().name("load-tx-" + i).start(() -> client.sendLoop(startDelay, ready)));
+        }
+
+        // Rampa: espera os registros (com folga) antes de começar a medir
+        ready.await(rampMs + 10000, TimeUnit.MILLISECONDS);
+        System.out.println("Clientes recebendo: " + receivers.sum() + " de " + clientCount);
+        measureFrom = System.nanoTime();
+        Thread.sleep(durationMs);
+        long measuredNanos = System.nanoTime() - measureFrom;
+
+        // Para os envios e dá tempo para as últimas difusões chegarem
+        running = false;
+        Thread.sleep(DRAIN_MS);
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        report(measuredNanos);
+    }
+
+    private void report(long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        long messages = sent.sum();
+        long expected = messages * receivers.sum();
+        long got = received.sum();
+        double loss = expected == 0 ? 0 : 100.0 * (1 - (double) got / expected);
+
+        System.out.println();
+        System.out.println("Clientes recebendo: " + receivers.sum() + " de " + clientCount);
+        System.out.printf("Enviadas: %d (%.1f/s)   histórico: %d   heartbeats: %d   erros de envio: %d%n",
+            messages, messages / seconds, historyRequests.sum(), heartbeats.sum(), sendErrors.sum());
+        if (closedLoop) {
+            System.out.printf("Respostas: %d (%.1f/s)   sem resposta: %d%n",
+                replies.sum(), replies.sum() / seconds, replyTimeouts.sum());
+            printLatency("Latência de ida e volta (ms)");
+            return;
+        }
+        System.out.printf("Entregas esperadas: %d   recebidas: %d (%.1f/s)   perda: %.2f%%%n",
+            expected, got, got / seconds, Math.max(0, loss));
+        printLatency("Latência de difusão (ms)");
+    }
+
+    private void printLatency(String label) {
+        System.out.printf("%s: p50 %.3f   p90 %.3f   p99 %.3f   p99.9 %.3f   máx %.3f   média %.3f%n",
+            label,
+            latency.getValueAtPercentile(50) / 1000.0,
+            latency.getValueAtPercentile(90) / 1000.0,
+            latency.getValueAtPercentile(99) / 1000.0,
+            latency.getValueAtPercentile(99.9) / 1000.0,
+            latency.getMax() / 1000.0,
+            latency.getMean() / 1000.0);
+    }
+
+    private int pickOperation() {
+        int roll = ThreadLocalRandom.current().nextInt(mix[OP_MESSAGE] + mix[OP_HISTORY] + mix[OP_HEARTBEAT]);
+        if (roll < mix[OP_MESSAGE]) {
+            return OP_MESSAGE;
+        }
+        return roll < mix[OP_MESSAGE] + mix[OP_HISTORY] ? OP_HISTORY : OP_HEARTBEAT;
+    }
+
+    // Marca vinda do texto recebido; só conta o que saiu durante a medição
+    private void recordMark(String text, long now) {
+        int at = text.indexOf(MARK);
+        if (at < 0) {
+            return;
+        }
+        int end = at + MARK.length();
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        long sentAt;
+        try {
+            sentAt = Long.parseLong(text.substring(at + MARK.length(), end));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (sentAt >= measureFrom) {
+            received.increment();
+            latency.record((now - sentAt) / 1000);
+        }
+    }
+
+    private class SimClient {
+        private final String name;
+        private final DatagramSocket socket;
+        private final CountDownLatch registered = new CountDownLatch(1);
+        // chat: última seq vista; serverudp: último índice do histórico
+        private volatile long lastSeq = 0;
+        private long lastKeepalive = 0;
+        // serverudp: 0 = assinatura pendente, 1 = aceita, -1 = recusada (***NOSUB***)
+        private int subscription = 0;
+        // Modo closed: id do pedido em voo e aviso de que a resposta chegou
+        private volatile int pendingId = 0;
+        private final Semaphore answered = new Semaphore(0);
+        private int nextId = 1;
+        // serverudp: ficha do último ***DESAFIO***, repetida no ***SUBSCRIBE***
+        private volatile String token = "";
+
+        SimClient(String name) throws IOException {
+            this.name = name;
+            this.socket = new DatagramSocket();
+            this.socket.setSoTimeout(1000);
+        }
+
+        void sendLoop(long startDelay, CountDownLatch ready) {
+            try {
+                Thread.sleep(startDelay);
+                boolean ok;
+                try {
+                    ok = register();
+                } finally {
+                    ready.countDown();
+                }
+                if (!ok) {
+                    System.err.println(name + ": registro sem resposta");
+                    return;
+                }
+                if (closedLoop) {
+                    requestLoop();
+                    return;
+                }
+
+                // Intervalo fixo com fase aleatória, para os clientes não baterem juntos
+                long periodNanos = (long) (1e9 / rate);
+                long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(periodNanos);
+                while (running) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    next += periodNanos;
+                    if (!running) {
+                        break;
+                    }
+                    perform(pickOperation());
+                    keepalive();
+                }
+            } catch (InterruptedException e) {
+                // fim da execução
+            } finally {
+                socket.close();
+            }
+        }
+
+        private boolean register() throws InterruptedException {
+            for (int attempt = 0; attempt < 3; attempt++) {
+                if (target == Target.CHAT) {
+                    send("REGISTER|" + name + (binary ? "|proto=" + WireProtocol.VERSION : ""));
+                } else {
+                    send("***REGISTER***/" + name);
+                }
+                if (registered.await(2, TimeUnit.SECONDS)) {
+                    break;
+                }
+            }
+            if (registered.getCount() > 0) {
+                return false;
+            }
+            if (target == Target.SERVERUDP && !closedLoop) {
+                // A difusão do ServerUDP é o push da assinatura; o receptor
+                // conta o cliente quando a assinatura é confirmada
+                subscribe();
+            } else {
+                receivers.increment();
+            }
+            lastKeepalive = System.currentTimeMillis();
+            return true;
+        }
+
+        // Um pedido por vez: o próximo só sai com a resposta ou o prazo
+        private void requestLoop() throws InterruptedException {
+            while (running) {
+                int operation = pickOperation();
+                long start = System.nanoTime();
+                boolean measured = start >= measureFrom;
+                String request;
+                switch (operation) {
+                    case OP_MESSAGE:
+                        request = "SEND_MESSAGE/" + MARK + start + "/" + lastSeq;
+                        if (measured) {
+                            sent.increment();
+                        }
+                        break;
+                    case OP_HISTORY:
+                        request = "***ATUALIZE***/" + lastSeq;
+                        historyRequests.increment();
+                        break;
+                    default:
+                        request = "***ONLINE***/" + name;
+                        heartbeats.increment();
+                        break;
+                }
+                int id = nextId++;
+                answered.drainPermits();
+                pendingId = id;
+                send("#" + id + "#" + request);
+                if (answered.tryAcquire(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    if (measured) {
+                        replies.increment();
+                        latency.record((System.nanoTime() - start) / 1000);
+                    }
+                } else if (measured) {
+                    replyTimeouts.increment();
+                }
+            }
+        }
+
+        private void perform(int operation) {
+            switch (operation) {
+                case OP_MESSAGE:
+                    String text = MARK + System.nanoTime();
+                    if (target == Target.CHAT) {
+                        send("MESSAGE|" + name + "|" + text);
+                    } else {
+                        send("SEND_MESSAGE/" + text + "/" + lastSeq);
+                    }
+                    if (System.nanoTime() >= measureFrom) {
+                        sent.increment();
+                    }
+                    break;
+                case OP_HISTORY:
+                    send(target == Target.CHAT ? "GET_MESSAGES|" + lastSeq : "***ATUALIZE***/" + lastSeq);
+                    historyRequests.increment();
+                    break;
+                default:
+                    heartbeat();
+                    break;
+            }
+        }
+
+        // Heartbeat (e renovação da assinatura) mesmo quando o mix não sorteia
+        private void keepalive() {
+            if (System.currentTimeMillis() - lastKeepalive >= KEEPALIVE_MS) {
+                heartbeat();
+            }
+        }
+
+        private void heartbeat() {
+            if (target == Target.CHAT) {
+                send("HEARTBEAT|" + name);
+            } else {
+                subscribe();
+            }
+            heartbeats.increment();
+            lastKeepalive = System.currentTimeMillis();
+        }
+
+        private void subscribe() {
+            send("***SUBSCRIBE***/" + lastSeq + "/" + name + "/" + token);
+        }
+
+        private void send(String command) {
+            byte[] data = command.getBytes(StandardCharsets.UTF_8);
+            try {
+                socket.send(new DatagramPacket(data, data.length, host, port));
+            } catch (IOException e) {
+                sendErrors.increment();
+            }
+        }
+
+        void receiveLoop() {
+            byte[] buffer = new byte[RECEIVE_BUFFER];
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                } catch (IOException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                int length = packet.getLength();
+                // Respostas grandes fragmentadas (histórico) não interessam à medida
+                if (Fragmenter.isFragment(buffer, 0, length)) {
+                    continue;
+                }
+
+                if (target == Target.CHAT) {
+                    onChatPacket(buffer, length, now);
+                } else {
+                    onServerUdpPacket(new String(buffer, 0, length, StandardCharsets.UTF_8), now);
+                }
+            }
+        }
+
+        private void onChatPacket(byte[] data, int length, long now) {
+            if (WireProtocol.isFrame(data, 0, length)) {
+                ByteBuffer frame = ByteBuffer.wrap(data, 0, length);
+                byte opcode = WireProtocol.opcode(frame);
+                WireProtocol.skipHeader(frame);
+                if (opcode == WireProtocol.REGISTER_OK) {
+                    registered.countDown();
+                } else if (opcode == WireProtocol.NEW_MESSAGE) {
+                    WireProtocol.readString(frame);
+                    String text = WireProtocol.readString(frame);
+                    WireProtocol.readString(frame);
+                    lastSeq = Math.max(lastSeq, WireProtocol.readLong(frame));
+                    recordMark(text, now);
+                }
+                return;
+            }
+
+            String message = new String(data, 0, length, StandardCharsets.UTF_8);
+            if (message.startsWith("REGISTER_OK")) {
+                registered.countDown();
+            } else if (message.startsWith("NEW_MESSAGE|")) {
+                // NEW_MESSAGE|<usuário>|<texto>|<timestamp>|<seq>
+                String[] parts = message.split("\\|");
+                if (parts.length >= 5) {
+                    lastSeq = Math.max(lastSeq, Long.parseLong(parts[4].trim()));
+                }
+                recordMark(message, now);
+            }
+        }
+
+        private void onServerUdpPacket(String message, long now) {
+            if (message.startsWith("#")) {
+                onReply(message);
+                return;
+            }
+            if (message.startsWith("***OK***")) {
+                registered.countDown();
+                return;
+            }
+            if (message.startsWith("***DESAFIO***/")) {
+                // Primeira assinatura ou ficha vencida: repete com a nova
+                token = message.substring(14).trim();
+                subscribe();
+                return;
+            }
+            if (message.startsWith("***NOSUB***")) {
+                subscription = -1;
+                return;
+            }
+            if (message.startsWith("***DELTA***/")) {
+                updateFromDelta(message);
+                // O primeiro delta responde ao ***SUBSCRIBE*** do registro
+                if (subscription == 0) {
+                    subscription = 1;
+                    receivers.increment();
+                }
+                return;
+            }
+            if (message.startsWith("***PUSH***/")) {
+                // ***PUSH***/<desde>/<total> e uma linha por mensagem nova
+                int end = message.indexOf('\n');
+                String[] header = message.substring(0, end < 0 ? message.length() : end).split("/");
+                lastSeq = Math.max(lastSeq, Long.parseLong(header[2].trim()));
+                for (String line : message.substring(end + 1).split("\n")) {
+                    recordMark(line, now);
+                }
+            }
+        }
+
+        // Só a resposta do pedido em voo libera o próximo; uma atrasada, de
+        // pedido que já venceu, só atualiza o índice
+        private void onReply(String message) {
+            int id = replyId(message);
+            String reply = message.substring(message.indexOf('#', 1) + 1);
+            if (reply.startsWith("***DELTA***/")) {
+                updateFromDelta(reply);
+            }
+            if (id != 0 && id == pendingId) {
+                pendingId = 0;
+                answered.release();
+            }
+        }
+
+        // "***DELTA***/<total>\n..." avança o último índice conhecido
+        private void updateFromDelta(String message) {
+            int end = message.indexOf('\n');
+            if (end > 12) {
+                lastSeq = Math.max(lastSeq, Long.parseLong(message.substring(12, end).trim()));
+            }
+        }
+    }
+
+    // "#<id>#<resposta>": resposta a um pedido do modo closed
+    private static int replyId(String message) {
+        int end = message.indexOf('#', 1);
+        try {
+            return end > 0 ? Integer.parseInt(message.substring(1, end)) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,130 @@
+package chatudp;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Mensagem de chat. Compacta: instante em epoch millis e texto em UTF-8, que
+// é o que vai para o datagrama e para o log; no histórico (MessageRing) nem
+// o objeto fica, só colunas de primitivos. O texto "dd/MM/yyyy HH:mm:ss" só
+// é montado quando a mensagem sai para o protocolo de texto (getTimestamp),
+// com um formatador em cache.
+class Message {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+    // Último segundo formatado e último texto lido: mensagens em rajada
+    // (e o log recuperado em ordem) repetem o mesmo segundo
+    private static volatile CachedTimestamp lastFormatted = new CachedTimestamp(Long.MIN_VALUE, "", 0);
+    private static volatile CachedTimestamp lastParsed = new CachedTimestamp(Long.MIN_VALUE, "", 0);
+    
+    private final long sequence;
+    private final long epochMillis;
+    private final String username;
+    private final byte[] text;
+    
+    public Message(long sequence, String username, String text) {
+        this(sequence, System.currentTimeMillis(), username, text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // Mensagem já existente com o instante em texto (log em disco, réplica do cluster)
+    public Message(long sequence, String username, String text, String timestamp) {
+        this(sequence, parseTimestamp(timestamp), username, text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public Message(long sequence, long epochMillis, String username, byte[] text) {
+        this.sequence = sequence;
+        this.epochMillis = epochMillis;
+        this.username = username;
+        this.text = text;
+    }
+    
+    // Getters
+    public long getSequence() { return sequence; }
+    public long getEpochMillis() { return epochMillis; }
+    public String getUsername() { return username; }
+    public String getText() { return new String(text, StandardCharsets.UTF_8); }
+    // Não copia: quem recebe não deve alterar
+    public byte[] getTextBytes() { return text; }
+    
+    // "<prefixo><usuário>|<texto>|<instante>|<seq><sufixo>", copiando os bytes
+    // do texto em vez de decodificar e codificar de novo. Em usuário e texto,
+    // barra invertida e quebra de linha saem escapadas (\\ e \n): a página de
+    // histórico em texto separa os registros por linha
+    public byte[] toTextRecord(String prefix, String suffix) {
+        byte[] head = (prefix + escape(username) + "|").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("|" + getTimestamp() + "|" + sequence + suffix).getBytes(StandardCharsets.UTF_8);
+        int textLength = text.length;
+        for (byte b : text) {
+            if (b == '\\' || b == '\n') {
+                textLength++;
+            }
+        }
+        byte[] record = new byte[head.length + textLength + tail.length];
+        System.arraycopy(head, 0, record, 0, head.length);
+        if (textLength == text.length) {
+            System.arraycopy(text, 0, record, head.length, text.length);
+        } else {
+            int position = head.length;
+            for (byte b : text) {
+                if (b == '\\' || b == '\n') {
+                    record[position++] = '\\';
+                    record[position++] = b == '\n' ? (byte) 'n' : b;
+                } else {
+                    record[position++] = b;
+                }
+            }
+        }
+        System.arraycopy(tail, 0, record, head.length + textLength, tail.length);
+        return record;
+    }
+    
+    private static String escape(String field) {
+        return field.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+    
+    // "[instante] usuário: texto", para o log
+    @Override
+    public String toString() {
+        return "[" + getTimestamp() + "] " + username + ": " + getText();
+    }
+    
+    public String getTimestamp() {
+        long second = Math.floorDiv(epochMillis, 1000);
+        CachedTimestamp cached = lastFormatted;
+        if (cached.second != second) {
+            cached = new CachedTimestamp(second, TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)), 0);
+            lastFormatted = cached;
+        }
+        return cached.text;
+    }
+    
+    static long parseTimestamp(String timestamp) {
+        CachedTimestamp cached = lastParsed;
+        if (!cached.text.equals(timestamp)) {
+            long millis;
+            try {
+                millis = Instant.from(TIMESTAMP_FORMAT.parse(timestamp)).toEpochMilli();
+            } catch (DateTimeException e) {
+                // Registro sem instante legível: vale o momento da leitura
+                millis = System.currentTimeMillis();
+            }
+            cached = new CachedTimestamp(Math.floorDiv(millis, 1000), timestamp, millis);
+            lastParsed = cached;
+        }
+        return cached.millis;
+    }
+    
+    private static final class CachedTimestamp {
+        final long second;
+        final String text;
+        final long millis;
+        
+        CachedTimestamp(long second, String text, long millis) {
+            this.second = second;
+            this.text = text;
+            this.millis = millis;
+        }
+    }
+}
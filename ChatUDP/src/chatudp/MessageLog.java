@@ -0,0 +1,234 @@
+package chatudp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Log de mensagens somente-anexação, em segmentos mapeados em memória.
+// Cada segmento é um arquivo de tamanho fixo chamado pela primeira
+// sequência que contém (por exemplo 00000000000000000001.log). Registro:
+//
+//   tamanho(4) crc32(4) seq(8) tamUsuário(2) usuário tamTimestamp(1) timestamp texto
+//
+// "tamanho" cobre tudo depois do CRC. Um tamanho zero marca o fim dos dados
+// do segmento (o arquivo nasce zerado). Na recuperação o log é lido em
+// sequência e a leitura para no primeiro registro inválido, descartando uma
+// cauda escrita pela metade.
+class MessageLog {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private static final int RECORD_HEADER = 8;
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    
+    // Política de fsync: nenhuma (fica com o SO), a cada N ms ou a cada N mensagens
+    enum SyncPolicy { NONE, INTERVAL, BATCH }
+    
+    private final File dir;
+    private final int segmentSize;
+    private final SyncPolicy syncPolicy;
+    private final int syncEvery;
+    private final CRC32 crc = new CRC32();
+    private ScheduledExecutorService syncer;
+    
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private int unsynced;
+    private boolean dirty;
+    
+    public MessageLog(File dir, int segmentSize, SyncPolicy syncPolicy, int syncEvery) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncPolicy = syncPolicy;
+        this.syncEvery = syncEvery;
+    }
+    
+    // Lê a configuração das propriedades chat.log.* ("none", "interval:100", "batch:50").
+    // Sem chat.log.dir, cada nó do cluster usa chat-log-<chat.node>: vários nós
+    // na mesma máquina não podem anexar aos mesmos segmentos
+    public static MessageLog fromProperties() {
+        String sync = System.getProperty("chat.log.sync", "interval:1000");
+        String[] policy = sync.split(":");
+        SyncPolicy syncPolicy = SyncPolicy.valueOf(policy[0].trim().toUpperCase());
+        int syncEvery = policy.length > 1 ? Integer.parseInt(policy[1].trim()) : 1;
+        String node = System.getProperty("chat.node");
+        String defaultDir = node == null || node.isBlank() ? "chat-log" : "chat-log-" + node.trim();
+        return new MessageLog(new File(System.getProperty("chat.log.dir", defaultDir)),
+                Integer.getInteger("chat.log.segmentSize", DEFAULT_SEGMENT_SIZE),
+                syncPolicy, syncEvery);
+    }
+    
+    // Varre todos os segmentos em ordem, entregando cada registro válido, e deixa
+    // o último segmento aberto para anexação logo após o último registro
+    public synchronized long recover(RecordHandler handler) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Não foi possível criar " + dir);
+        }
+        
+        File[] files = segmentFiles();
+        long lastSeq = 0;
+        long records = 0;
+        
+        for (int i = 0; i < files.length; i++) {
+            boolean last = i == files.length - 1;
+            FileChannel channel = new RandomAccessFile(files[i], "rw").getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                                  Math.max(channel.size(), segmentSize));
+            int position = 0;
+            while (true) {
+                Message msg = readRecord(buffer, position);
+                if (msg == null) break;
+                handler.onRecord(msg);
+                lastSeq = msg.getSequence();
+                records++;
+                position += RECORD_HEADER + buffer.getInt(position);
+            }
+            
+            if (last) {
+                // Havendo uma cauda escrita pela metade, zera o resto do segmento
+                // para que a próxima anexação comece limpa
+                if (position + RECORD_HEADER <= buffer.limit() && buffer.getInt(position) != 0) {
+                    for (int p = position; p < buffer.limit(); p++) {
+                        buffer.put(p, (byte) 0);
+                    }
+                }
+                buffer.position(position);
+                segmentChannel = channel;
+                segment = buffer;
+            } else {
+                channel.close();
+            }
+        }
+        
+        LOG.info("Log recuperado: {} mensagens em {} segmento(s)", records, files.length);
+        
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "chat-log-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleAtFixedRate(this::syncIfDirty, syncEvery, syncEvery, TimeUnit.MILLISECONDS);
+        }
+        return lastSeq;
+    }
+    
+    public synchronized void append(Message msg) throws IOException {
+        byte[] user = msg.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] timestamp = msg.getTimestamp().getBytes(StandardCharsets.UTF_8);
+        byte[] text = msg.getTextBytes();
+        int length = 8 + 2 + user.length + 1 + timestamp.length + text.length;
+        
+        if (RECORD_HEADER + length + RECORD_HEADER > segmentSize) {
+            throw new IOException("Mensagem maior que o segmento do log");
+        }
+        if (segment == null || segment.remaining() < RECORD_HEADER + length + RECORD_HEADER) {
+            roll(msg.getSequence());
+        }
+        
+        int start = segment.position();
+        segment.position(start + RECORD_HEADER);
+        segment.putLong(msg.getSequence())
+               .putShort((short) user.length).put(user)
+               .put((byte) timestamp.length).put(timestamp)
+               .put(text);
+        
+        crc.reset();
+        crc.update(segment.slice(start + RECORD_HEADER, length));
+        segment.putInt(start + 4, (int) crc.getValue());
+        // O tamanho é escrito por último: um registro só "existe" quando está completo
+        segment.putInt(start, length);
+        dirty = true;
+        
+        if (syncPolicy == SyncPolicy.BATCH && ++unsynced >= syncEvery) {
+            segment.force();
+            unsynced = 0;
+            dirty = false;
+        }
+    }
+    
+    public synchronized void close() {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        try {
+            if (segment != null) {
+                segment.force();
+            }
+            if (segmentChannel != null) {
+                segmentChannel.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Erro fechando log: {}", e.getMessage());
+        }
+    }
+    
+    private synchronized void syncIfDirty() {
+        if (dirty && segment != null) {
+            segment.force();
+            dirty = false;
+        }
+    }
+    
+    private void roll(long firstSeq) throws IOException {
+        if (segment != null) {
+            segment.force();
+            segmentChannel.close();
+        }
+        File file = new File(dir, String.format("%020d.log", firstSeq));
+        segmentChannel = new RandomAccessFile(file, "rw").getChannel();
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+    
+    private File[] segmentFiles() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files == null) {
+            return new File[0];
+        }
+        // Nomes com zeros à esquerda: ordem alfabética = ordem de sequência
+        Arrays.sort(files);
+        return files;
+    }
+    
+    private Message readRecord(ByteBuffer buffer, int position) {
+        if (position + RECORD_HEADER > buffer.limit()) return null;
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER + length > buffer.limit()) return null;
+        
+        int start = position + RECORD_HEADER;
+        crc.reset();
+        crc.update(buffer.slice(start, length));
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) return null;
+        
+        long seq = buffer.getLong(start);
+        int userLength = buffer.getShort(start + 8) & 0xFFFF;
+        int userStart = start + 10;
+        int tsLength = buffer.get(userStart + userLength) & 0xFF;
+        int tsStart = userStart + userLength + 1;
+        int textStart = tsStart + tsLength;
+        
+        byte[] text = new byte[start + length - textStart];
+        buffer.get(textStart, text);
+        return new Message(seq,
+                Message.parseTimestamp(decode(buffer, tsStart, tsLength)),
+                decode(buffer, userStart, userLength),
+                text);
+    }
+    
+    private static String decode(ByteBuffer buffer, int start, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    interface RecordHandler {
+        void onRecord(Message msg);
+    }
+}
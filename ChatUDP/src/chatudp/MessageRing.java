@@ -0,0 +1,227 @@
+package chatudp;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+// Histórico limitado em anel, sem locks. Cada mensagem recebe um número de
+// sequência crescente (a partir de 1); a posição no anel é seq & mask, então
+// as mensagens mais antigas são sobrescritas quando a capacidade é atingida.
+//
+// O anel não guarda objetos: cada campo é uma coluna de primitivos (instante
+// em epoch millis, id do usuário na UserNames, posição do texto) e o texto
+// UTF-8 fica num único byte[] circular compartilhado. Milhões de mensagens
+// custam alguns arrays grandes que o coletor nem precisa percorrer, em vez
+// de Message + Strings por mensagem. Quem lê recebe um Message montado na
+// hora (forEachSince).
+//
+// Cada posição funciona como um seqlock: a coluna de sequências vale -seq
+// enquanto a mensagem seq é escrita e seq depois de publicada; quem lê
+// confere a sequência antes e depois de copiar os campos. Texto maior que
+// um quarto da área vai num array próprio para não varrer a área inteira.
+//
+// A área tem capacidade * textBytes e só é alocada no primeiro texto (sala
+// sem mensagens custa só as colunas). Quando uma rajada de textos longos
+// esgota a área, as mensagens mais antigas saem do histórico junto com o
+// texto (floor avança), como se o anel tivesse dado a volta.
+class MessageRing {
+    // Bytes de texto reservados por posição do anel (-Dchat.history.textBytes)
+    private static final int DEFAULT_TEXT_BYTES = 64;
+
+    private final AtomicLongArray sequences;
+    private final long[] millis;
+    private final int[] users;
+    // Posição absoluta (sempre crescente) e tamanho do texto na área
+    private final long[] textStart;
+    private final int[] textLength;
+    private final byte[][] largeText;
+    private final int arenaSize;
+    private volatile byte[] arena;
+    private final AtomicLong arenaTail = new AtomicLong();
+    private final int mask;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    // Menor sequência que ainda pode estar no histórico
+    private final AtomicLong floor = new AtomicLong(1);
+
+    public MessageRing(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        sequences = new AtomicLongArray(capacity);
+        millis = new long[capacity];
+        users = new int[capacity];
+        textStart = new long[capacity];
+        textLength = new int[capacity];
+        largeText = new byte[capacity][];
+        long arenaBytes = (long) capacity * Integer.getInteger("chat.history.textBytes", DEFAULT_TEXT_BYTES);
+        arenaSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, arenaBytes));
+        mask = capacity - 1;
+    }
+    
+    private byte[] arena() {
+        byte[] current = arena;
+        if (current == null) {
+            synchronized (this) {
+                current = arena;
+                if (current == null) {
+                    arena = current = new byte[arenaSize];
+                }
+            }
+        }
+        return current;
+    }
+
+    // Reserva o próximo número de sequência; a mensagem deve ser publicada em seguida
+    public long claim() {
+        return nextSeq.getAndIncrement();
+    }
+
+    public void publish(Message message) {
+        long seq = message.getSequence();
+        int slot = (int) (seq & mask);
+        sequences.set(slot, -seq);
+        // Os campos abaixo não podem ficar visíveis antes da marca de escrita
+        VarHandle.storeStoreFence();
+        millis[slot] = message.getEpochMillis();
+        users[slot] = UserNames.idOf(message.getUsername());
+        byte[] text = message.getTextBytes();
+        boolean large = text.length > arenaSize / 4;
+        if (large) {
+            largeText[slot] = text;
+        } else {
+            largeText[slot] = null;
+            textStart[slot] = storeText(text);
+        }
+        textLength[slot] = text.length;
+        sequences.set(slot, seq);
+        if (!large) {
+            evictOverwritten();
+        }
+    }
+
+    // Reserva o trecho na área circular e copia, dando a volta se preciso
+    private long storeText(byte[] text) {
+        byte[] area = arena();
+        long start = arenaTail.getAndAdd(text.length);
+        int offset = (int) (start % area.length);
+        int first = Math.min(text.length, area.length - offset);
+        System.arraycopy(text, 0, area, offset, first);
+        System.arraycopy(text, first, area, 0, text.length - first);
+        return start;
+    }
+
+    // Avança floor até a última mensagem publicada cujo texto já foi
+    // sobrescrito na área. Texto longo (array próprio) não limita, mas sai
+    // junto se houver mensagem sobrescrita depois dele; para na primeira
+    // mensagem inteira ou ainda não publicada
+    private void evictOverwritten() {
+        long limit = arenaTail.get() - arenaSize;
+        if (limit <= 0) {
+            return;
+        }
+        long end = nextSeq.get();
+        long evictTo = 0;
+        for (long seq = Math.max(floor.get(), end - sequences.length()); seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            if (sequences.get(slot) != seq) {
+                break;
+            }
+            if (largeText[slot] != null) {
+                continue;
+            }
+            long start = textStart[slot];
+            if (sequences.get(slot) != seq || start >= limit) {
+                break;
+            }
+            evictTo = seq;
+        }
+        if (evictTo > 0) {
+            floor.accumulateAndGet(evictTo + 1, Math::max);
+        }
+    }
+
+    // Usado na recuperação do log: publica e avança a próxima sequência
+    public void restore(Message message) {
+        publish(message);
+        nextSeq.accumulateAndGet(message.getSequence() + 1, Math::max);
+    }
+
+    // Percorre as mensagens com sequência maior que lastSeq, em ordem. Para na
+    // primeira sequência reservada mas ainda não publicada, para que o
+    // cliente nunca pule uma mensagem que ainda vai aparecer. Começa em floor:
+    // o que teve o texto sobrescrito na área já saiu, como o que sai do anel.
+    //
+    // Devolve até onde quem lê ficou em dia: a última sequência entregue (ou
+    // perdida de vez), nunca uma reservada que ainda não foi publicada. É o
+    // valor a informar ao cliente no fim do histórico.
+    public long forEachSince(long lastSeq, Consumer<Message> action) {
+        int length = sequences.length();
+        long end = nextSeq.get();
+        long oldest = Math.max(floor.get(), end - length);
+        long seq = Math.max(lastSeq + 1, oldest);
+        long delivered = Math.max(lastSeq, oldest - 1);
+
+        for (; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            long current = sequences.get(slot);
+            // Em escrita: vale a sequência que está sendo gravada
+            long stored = Math.abs(current);
+            if (stored < seq || current == -seq) {
+                break;
+            }
+            if (stored > seq) {
+                // Sobrescrita durante a leitura: avança para o que ainda existe
+                seq = stored - length;
+                delivered = seq;
+                continue;
+            }
+
+            long time = millis[slot];
+            int user = users[slot];
+            int size = textLength[slot];
+            byte[] large = largeText[slot];
+            long start = textStart[slot];
+            VarHandle.acquireFence();
+            if (sequences.get(slot) != seq) {
+                // Trocou no meio da cópia: reavalia a mesma posição
+                seq--;
+                continue;
+            }
+
+            byte[] text = large;
+            if (text == null) {
+                text = loadText(start, size);
+            }
+            delivered = seq;
+            if (text == null) {
+                // Texto sobrescrito depois da leitura da coluna: a mensagem
+                // saiu do histórico, e as anteriores a ela também
+                floor.accumulateAndGet(seq + 1, Math::max);
+                continue;
+            }
+            action.accept(new Message(seq, time, UserNames.nameOf(user), text));
+        }
+        return delivered;
+    }
+
+    // Copia o texto e confere depois que ninguém reservou o trecho de novo
+    private byte[] loadText(long start, int size) {
+        byte[] area = arena();
+        byte[] text = new byte[size];
+        int offset = (int) (start % area.length);
+        int first = Math.min(size, area.length - offset);
+        System.arraycopy(area, offset, text, 0, first);
+        System.arraycopy(area, 0, text, first, size - first);
+        VarHandle.acquireFence();
+        return arenaTail.get() - area.length <= start ? text : null;
+    }
+
+    public long getLastSequence() { return nextSeq.get() - 1; }
+    public int getCapacity() { return sequences.length(); }
+
+    // Mensagens ainda no histórico (menos que a capacidade se a área de
+    // texto esgotou antes do anel)
+    public int size() {
+        long end = nextSeq.get();
+        return (int) Math.max(0, end - Math.max(floor.get(), end - sequences.length()));
+    }
+}
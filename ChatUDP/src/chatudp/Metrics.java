@@ -0,0 +1,162 @@
+package chatudp;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Registro de métricas do servidor: contadores (LongAdder), gauges lidos só
+// na consulta e histogramas de latência sem trava. Quem mede guarda a
+// referência do contador/histograma, então o caminho quente não passa pelos
+// mapas; eles só são percorridos no GET_METRICS e no JMX.
+//
+// Histogramas aparecem achatados: <nome>.count, .p50, .p99, .p999 e .max.
+// -Dchat.metrics=false desliga tudo (o servidor fica com null). GET_METRICS
+// só é respondido para a própria máquina; -Dchat.metrics.remote=true libera
+// para qualquer origem (o texto expõe carga e nomes de sala).
+final class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final boolean remote = Boolean.getBoolean("chat.metrics.remote");
+    private ObjectName registeredName;
+
+    static Metrics fromProperties() {
+        return Boolean.parseBoolean(System.getProperty("chat.metrics", "true")) ? new Metrics() : null;
+    }
+
+    // Quem pode receber o GET_METRICS
+    public boolean allows(InetAddress address) {
+        return remote || address.isLoopbackAddress();
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    // Valores do momento, em ordem de nome; histogramas ainda vazios ficam de fora
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            if (histogram.getCount() == 0) {
+                return;
+            }
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".p50", histogram.getValueAtPercentile(50));
+            values.put(name + ".p99", histogram.getValueAtPercentile(99));
+            values.put(name + ".p999", histogram.getValueAtPercentile(99.9));
+            values.put(name + ".max", histogram.getMax());
+        });
+        return values;
+    }
+
+    // Resposta do GET_METRICS: "METRICS" e uma linha "<nome> <valor>" por métrica
+    public String render() {
+        StringBuilder text = new StringBuilder("METRICS\n");
+        snapshot().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+        return text.toString();
+    }
+
+    // Publica no MBeanServer da plataforma (jconsole, jcmd, agentes JMX)
+    public void registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new View(), name);
+            registeredName = name;
+        } catch (Exception e) {
+            AsyncLogger.get().warn("Métricas fora do JMX: {}", e.getMessage());
+        }
+    }
+
+    public void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (Exception e) {
+            // já removido
+        }
+        registeredName = null;
+    }
+
+    // MBean dinâmico: um atributo long somente leitura por métrica
+    private class View implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            // Métricas são somente leitura
+            throw new AttributeNotFoundException(attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature)
+                throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Métricas do ChatServer",
+                    attributes, null, null, null);
+        }
+    }
+}
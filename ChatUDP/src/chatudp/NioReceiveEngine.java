@@ -0,0 +1,72 @@
+package chatudp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+// Laço de recepção baseado em DatagramChannel. Cada datagrama é lido num
+// único buffer direto da engine e copiado para um array de trabalho
+// reutilizado, evitando o byte[] + DatagramPacket novos por pacote do
+// caminho antigo. O handler decodifica e enfileira antes de voltar, então
+// um buffer por thread de recepção basta: nada dele sobrevive à chamada.
+class NioReceiveEngine {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] scratch;
+    // Datagramas lidos e os que o handler recusou (fila de processamento cheia)
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running;
+    
+    public NioReceiveEngine(DatagramChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.scratch = new byte[bufferSize];
+    }
+    
+    public void run(PacketHandler handler) {
+        running = true;
+        while (running) {
+            try {
+                buffer.clear();
+                InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                if (sender == null) {
+                    continue;
+                }
+                
+                buffer.flip();
+                int length = buffer.remaining();
+                buffer.get(scratch, 0, length);
+                received.increment();
+                if (!handler.handle(scratch, length, sender.getAddress(), sender.getPort())) {
+                    dropped.increment();
+                }
+                
+            } catch (AsynchronousCloseException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    LOG.error("Erro no servidor: {}", e.getMessage());
+                }
+            }
+        }
+    }
+    
+    public void stop() {
+        running = false;
+    }
+    
+    public long getReceived() { return received.sum(); }
+    public long getDropped() { return dropped.sum(); }
+    
+    // Recebe os bytes do datagrama; o array só é válido durante a chamada.
+    // Retorna false se o datagrama foi descartado.
+    interface PacketHandler {
+        boolean handle(byte[] data, int length, InetAddress address, int port);
+    }
+}
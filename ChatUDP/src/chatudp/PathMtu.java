@@ -0,0 +1,87 @@
+package chatudp;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Estima o maior payload UDP que cabe num datagrama sem fragmentação IP até
+// um destino. Loopback usa o MTU da interface de loopback; para os demais
+// destinos usa o menor MTU entre as interfaces ativas (estimativa
+// conservadora, já que Java não expõe a rota). -Dchat.mtu força um valor.
+//
+// Só o loopback depende do endereço (interface de cada um); os demais
+// destinos dependem apenas da família, então não entram no cache e a origem
+// de um datagrama forjado não faz o mapa crescer.
+final class PathMtu {
+    static final int MAX_UDP_PAYLOAD = 65507;
+    private static final int DEFAULT_MTU = 1500;
+    private static final int IPV4_UDP_HEADERS = 28;
+    private static final int IPV6_UDP_HEADERS = 48;
+    // Acima disso o valor é calculado de novo a cada chamada
+    private static final int MAX_CACHED = 64;
+    
+    // Só endereços de loopback
+    private static final Map<InetAddress, Integer> cache = new ConcurrentHashMap<>();
+    private static volatile int externalMtu = -1;
+    
+    private PathMtu() {
+    }
+    
+    public static int maxPayload(InetAddress destination) {
+        if (!destination.isLoopbackAddress()) {
+            return computePayload(destination);
+        }
+        Integer cached = cache.get(destination);
+        if (cached != null) {
+            return cached;
+        }
+        int payload = computePayload(destination);
+        if (cache.size() < MAX_CACHED) {
+            cache.put(destination, payload);
+        }
+        return payload;
+    }
+    
+    private static int computePayload(InetAddress destination) {
+        int headers = destination instanceof Inet6Address ? IPV6_UDP_HEADERS : IPV4_UDP_HEADERS;
+        Integer forced = Integer.getInteger("chat.mtu");
+        int mtu = forced != null ? forced
+                : destination.isLoopbackAddress() ? loopbackMtu(destination) : externalMtu();
+        return Math.max(1, Math.min(MAX_UDP_PAYLOAD, mtu - headers));
+    }
+    
+    private static int loopbackMtu(InetAddress destination) {
+        try {
+            NetworkInterface nif = NetworkInterface.getByInetAddress(destination);
+            if (nif != null && nif.getMTU() > 0) {
+                return nif.getMTU();
+            }
+        } catch (SocketException e) {
+            // usa o padrão
+        }
+        return DEFAULT_MTU;
+    }
+    
+    private static int externalMtu() {
+        if (externalMtu < 0) {
+            int min = Integer.MAX_VALUE;
+            try {
+                Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+                while (interfaces != null && interfaces.hasMoreElements()) {
+                    NetworkInterface nif = interfaces.nextElement();
+                    if (nif.isUp() && !nif.isLoopback() && nif.getMTU() > 0) {
+                        min = Math.min(min, nif.getMTU());
+                    }
+                }
+            } catch (SocketException e) {
+                // usa o padrão
+            }
+            externalMtu = min == Integer.MAX_VALUE ? DEFAULT_MTU : min;
+        }
+        return externalMtu;
+    }
+}
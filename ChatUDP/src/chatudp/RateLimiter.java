@@ -0,0 +1,335 @@
+package chatudp;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets por usuário e por endereço de origem, com orçamentos
+// separados por tipo de comando. A verificação olha só o cabeçalho do
+// datagrama (nome do comando ou opcode e o campo do usuário), sem criar
+// Strings nem fazer o parse completo, para o excesso ser descartado barato.
+//
+// Os baldes ficam em tabelas fixas de AtomicLongArray indexadas pelo hash da
+// chave; cada posição guarda num long o instante do último reabastecimento
+// (ms desde a criação, 40 bits altos: não dá a volta em 34 anos) e os tokens
+// em milésimos (24 bits baixos, rajada de até 16777 tokens), atualizados com
+// CAS. O instante começa em 1, então o long zero só existe em balde nunca
+// usado. Chaves que colidem dividem o mesmo balde, o que só deixa o limite
+// mais rígido para elas.
+//
+// Fragmentos (ver Fragmenter) não têm cabeçalho de comando: cada um gasta um
+// token da classe fragment só no balde do endereço, antes de ser copiado para
+// a remontagem; a mensagem remontada ainda passa por tryAcquire. Envelopes
+// da camada confiável (dados, ACK e NACK) gastam da classe envelope, também
+// só por endereço, antes de criar sessão ou responder.
+//
+// Configuração: -Dchat.rate=false desliga; -Dchat.rate.message, .history,
+// .control, .fragment e .envelope no formato <tokens por segundo>:<rajada>;
+// -Dchat.rate.addressFactor multiplica os orçamentos por endereço (vários
+// usuários atrás de um NAT).
+class RateLimiter {
+    static final int MESSAGE = 0;
+    static final int HISTORY = 1;
+    static final int CONTROL = 2;
+    static final int FRAGMENT = 3;
+    static final int ENVELOPE = 4;
+    static final int CLASSES = 5;
+    private static final String[] CLASS_NAMES = { "message", "history", "control", "fragment", "envelope" };
+    
+    private static final int TABLE_SIZE = 1 << 16;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final int NOT_LIMITED = -1;
+    
+    // Todo comando texto que o servidor despacha (TextFields.NAMES) é limitado;
+    // só nomes desconhecidos passam direto para o parse, que os recusa
+    private static final byte[][] TEXT_COMMANDS = new byte[TextFields.NAMES.length][];
+    private static final int[] TEXT_CLASSES = new int[TextFields.NAMES.length];
+    private static final boolean[] TEXT_HAS_USER = new boolean[TextFields.NAMES.length];
+    
+    static {
+        for (int i = 0; i < TextFields.NAMES.length; i++) {
+            TEXT_COMMANDS[i] = ascii(TextFields.NAMES[i]);
+            TEXT_CLASSES[i] = textClass(TextFields.NAMES[i]);
+            TEXT_HAS_USER[i] = textHasUser(TextFields.NAMES[i]);
+        }
+    }
+    
+    private final AtomicLongArray userBuckets = new AtomicLongArray(TABLE_SIZE);
+    private final AtomicLongArray addressBuckets = new AtomicLongArray(TABLE_SIZE);
+    // Tokens por segundo equivalem a milésimos de token por ms
+    private final int[] rate = new int[CLASSES];
+    private final long[] burst = new long[CLASSES];
+    // Orçamentos por endereço (x addressFactor)
+    private final int[] addressRate = new int[CLASSES];
+    private final long[] addressBurst = new long[CLASSES];
+    private final LongAdder[] dropped = new LongAdder[CLASSES];
+    private final long startNanos = System.nanoTime();
+    
+    // Rajadas acima do que cabe nos bits de tokens são reduzidas ao máximo
+    public RateLimiter(int[] rate, int[] burst, int addressFactor) {
+        for (int i = 0; i < CLASSES; i++) {
+            this.rate[i] = rate[i];
+            this.burst[i] = Math.min(TOKEN_MASK, burst[i] * 1000L);
+            this.addressRate[i] = rate[i] * addressFactor;
+            this.addressBurst[i] = Math.min(TOKEN_MASK, burst[i] * 1000L * addressFactor);
+            this.dropped[i] = new LongAdder();
+        }
+    }
+    
+    // null se desligado com -Dchat.rate=false
+    public static RateLimiter fromProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("chat.rate", "true"))) {
+            return null;
+        }
+        // Rajada de fragmentos (x addressFactor) cobre uma mensagem de 1 MB;
+        // envelopes incluem ACKs e retransmissões de todas as outras classes
+        int[] defaultRate = { 20, 2, 10, 100, 200 };
+        int[] defaultBurst = { 40, 10, 20, 200, 400 };
+        int[] rate = new int[CLASSES];
+        int[] burst = new int[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            String spec = System.getProperty("chat.rate." + CLASS_NAMES[i]);
+            if (spec != null) {
+                String[] parts = spec.split(":");
+                rate[i] = Integer.parseInt(parts[0].trim());
+                burst[i] = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : rate[i];
+            } else {
+                rate[i] = defaultRate[i];
+                burst[i] = defaultBurst[i];
+            }
+        }
+        return new RateLimiter(rate, burst, Integer.getInteger("chat.rate.addressFactor", 4));
+    }
+    
+    // false = descartar. Só datagramas que não são comandos conhecidos passam
+    // sem gastar token, e o parse decide o que fazer com eles.
+    public boolean tryAcquire(byte[] data, int offset, int length, InetAddress address) {
+        int commandClass;
+        long userHash = 0;
+        boolean hasUser;
+        
+        if (WireProtocol.isFrame(data, offset, length)) {
+            commandClass = frameClass(data[offset + 2]);
+            hasUser = frameHasUser(data[offset + 2]);
+            if (hasUser) {
+                // Primeiro campo: tamanho (2 bytes) seguido do usuário
+                int field = offset + WireProtocol.HEADER_SIZE;
+                if (field + 2 > offset + length) {
+                    hasUser = false;
+                } else {
+                    int userLength = ((data[field] & 0xFF) << 8) | (data[field + 1] & 0xFF);
+                    userHash = hash(data, field + 2, Math.min(userLength, offset + length - field - 2));
+                }
+            }
+        } else {
+            int end = offset + length;
+            int bar = offset;
+            while (bar < end && data[bar] != '|') {
+                bar++;
+            }
+            int command = textCommand(data, offset, bar - offset);
+            if (command < 0) {
+                return true;
+            }
+            commandClass = TEXT_CLASSES[command];
+            hasUser = TEXT_HAS_USER[command] && bar < end;
+            if (hasUser) {
+                int userEnd = bar + 1;
+                while (userEnd < end && data[userEnd] != '|') {
+                    userEnd++;
+                }
+                userHash = hash(data, bar + 1, userEnd - bar - 1);
+            }
+        }
+        
+        if (commandClass == NOT_LIMITED) {
+            return true;
+        }
+        
+        long now = nowMs();
+        if (!takeAddress(commandClass, address, now)) {
+            return false;
+        }
+        if (hasUser && !take(userBuckets, slot(userHash, commandClass), now,
+                             rate[commandClass], burst[commandClass])) {
+            dropped[commandClass].increment();
+            return false;
+        }
+        return true;
+    }
+    
+    // false = descartar o fragmento sem copiá-lo
+    public boolean tryAcquireFragment(InetAddress address) {
+        return takeAddress(FRAGMENT, address, nowMs());
+    }
+    
+    // false = descartar o envelope antes que a camada confiável o veja
+    public boolean tryAcquireEnvelope(InetAddress address) {
+        return takeAddress(ENVELOPE, address, nowMs());
+    }
+    
+    private boolean takeAddress(int commandClass, InetAddress address, long now) {
+        int addressSlot = slot(address.hashCode() * 0x9E3779B97F4A7C15L, commandClass);
+        if (!take(addressBuckets, addressSlot, now,
+                  addressRate[commandClass], addressBurst[commandClass])) {
+            dropped[commandClass].increment();
+            return false;
+        }
+        return true;
+    }
+    
+    public long getDropped(int commandClass) {
+        return dropped[commandClass].sum();
+    }
+    
+    // Ex.: "message: 10, history: 250, control: 0"
+    public String describe() {
+        StringBuilder stats = new StringBuilder();
+        for (int i = 0; i < CLASSES; i++) {
+            if (i > 0) {
+                stats.append(", ");
+            }
+            stats.append(CLASS_NAMES[i]).append(": ").append(getDropped(i));
+        }
+        return stats.toString();
+    }
+    
+    // Reabastece pelo tempo decorrido e retira um token, se houver
+    private static boolean take(AtomicLongArray buckets, int slot, long now, int ratePerMs, long burst) {
+        while (true) {
+            long state = buckets.get(slot);
+            long last = state >>> TOKEN_BITS;
+            long tokens;
+            if (state == 0) {
+                // Balde ainda não usado começa cheio
+                tokens = burst;
+            } else {
+                // now < last só quando outra thread gravou um instante mais novo
+                tokens = Math.min(burst, (state & TOKEN_MASK) + Math.max(0, now - last) * ratePerMs);
+            }
+            if (tokens < 1000) {
+                return false;
+            }
+            long next = (Math.max(now, last) << TOKEN_BITS) | (tokens - 1000);
+            if (buckets.compareAndSet(slot, state, next)) {
+                return true;
+            }
+        }
+    }
+    
+    // Nunca zero, para não confundir com balde vazio
+    private long nowMs() {
+        return (System.nanoTime() - startNanos) / 1_000_000 + 1;
+    }
+    
+    private static int slot(long keyHash, int commandClass) {
+        long h = keyHash + commandClass * 0x632BE59BD9B4E019L;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        return (int) h & (TABLE_SIZE - 1);
+    }
+    
+    private static long hash(byte[] data, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= data[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+    
+    private static int textCommand(byte[] data, int offset, int length) {
+        for (int i = 0; i < TEXT_COMMANDS.length; i++) {
+            byte[] name = TEXT_COMMANDS[i];
+            if (name.length == length && regionMatches(data, offset, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean regionMatches(byte[] data, int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (data[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Mesmas classes de frameClass; comando novo sem classe própria cai em control
+    private static int textClass(String name) {
+        switch (name) {
+            case "MESSAGE":
+            case "ROOM_MESSAGE":
+                return MESSAGE;
+            case "GET_MESSAGES":
+            case "GET_USERS":
+            case "GET_REPORT":
+            case "GET_ROSTER":
+            case "GET_METRICS":
+            case "JOIN":
+                return HISTORY;
+            default:
+                return CONTROL;
+        }
+    }
+    
+    private static boolean textHasUser(String name) {
+        switch (name) {
+            case "GET_MESSAGES":
+            case "GET_USERS":
+            case "GET_REPORT":
+            case "GET_ROSTER":
+            case "GET_METRICS":
+                return false;
+            default:
+                return true;
+        }
+    }
+    
+    private static int frameClass(byte opcode) {
+        switch (opcode) {
+            case WireProtocol.MESSAGE:
+            case WireProtocol.ROOM_MESSAGE:
+                return MESSAGE;
+            case WireProtocol.GET_MESSAGES:
+            case WireProtocol.GET_USERS:
+            case WireProtocol.GET_REPORT:
+            case WireProtocol.GET_ROSTER:
+            case WireProtocol.JOIN:
+                return HISTORY;
+            case WireProtocol.REGISTER:
+            case WireProtocol.HEARTBEAT:
+            case WireProtocol.DISCONNECT:
+            case WireProtocol.LEAVE:
+                return CONTROL;
+            default:
+                // Pedidos ficam abaixo das respostas (REGISTER_OK); opcode de
+                // pedido sem classe própria também é limitado
+                return opcode > 0 && opcode < WireProtocol.REGISTER_OK ? CONTROL : NOT_LIMITED;
+        }
+    }
+    
+    private static boolean frameHasUser(byte opcode) {
+        switch (opcode) {
+            case WireProtocol.MESSAGE:
+            case WireProtocol.ROOM_MESSAGE:
+            case WireProtocol.JOIN:
+            case WireProtocol.REGISTER:
+            case WireProtocol.HEARTBEAT:
+            case WireProtocol.DISCONNECT:
+            case WireProtocol.LEAVE:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private static byte[] ascii(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,236 @@
+package chatudp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remonta payloads fragmentados (ver Fragmenter). A tabela é limitada em
+// número de mensagens pendentes, bytes retidos no total e tamanho por
+// mensagem, e também por endereço de origem (um par sozinho não ocupa a
+// tabela inteira); mensagens incompletas expiram após o timeout. O total de
+// pedaços anunciado é limitado pelo menor fragmento aceito, e a tabela de
+// pedaços de cada mensagem conta como bytes retidos desde a criação. Sem espaço,
+// o fragmento que abriria uma mensagem nova é descartado (as pendentes têm
+// prioridade para terminar).
+class Reassembler {
+    private static final int DEFAULT_MAX_PENDING = 1024;
+    private static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    private static final int DEFAULT_MAX_MESSAGE = 1024 * 1024;
+    private static final int DEFAULT_MAX_PEER_PENDING = 16;
+    private static final long DEFAULT_MAX_PEER_BYTES = 2L * 1024 * 1024;
+    private static final long DEFAULT_TIMEOUT_MS = 5000;
+    // A limpeza de expirados roda a cada tantos fragmentos recebidos
+    private static final int SWEEP_INTERVAL = 256;
+    // Custo de cada posição da tabela de pedaços (referência sem compressão)
+    private static final int REFERENCE_BYTES = 8;
+    
+    private final Map<Key, Partial> pending = new ConcurrentHashMap<>();
+    private final AtomicLong retainedBytes = new AtomicLong();
+    // Mensagens pendentes e bytes retidos por endereço (só com algo pendente)
+    private final Map<InetAddress, Usage> peers = new ConcurrentHashMap<>();
+    private final int maxPending;
+    private final long maxBytes;
+    private final int maxMessage;
+    private final int maxCount;
+    private final int maxPeerPending;
+    private final long maxPeerBytes;
+    private final long timeoutMs;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong received = new AtomicLong();
+    
+    public Reassembler() {
+        this(DEFAULT_MAX_PENDING, DEFAULT_MAX_BYTES, DEFAULT_MAX_MESSAGE,
+             DEFAULT_MAX_PEER_PENDING, DEFAULT_MAX_PEER_BYTES, DEFAULT_TIMEOUT_MS);
+    }
+    
+    public Reassembler(int maxPending, long maxBytes, int maxMessage,
+                       int maxPeerPending, long maxPeerBytes, long timeoutMs) {
+        this.maxPending = maxPending;
+        this.maxBytes = maxBytes;
+        this.maxMessage = maxMessage;
+        this.maxCount = Math.min(Fragmenter.MAX_FRAGMENTS,
+                (maxMessage + Fragmenter.MIN_FRAGMENT_SIZE - 1) / Fragmenter.MIN_FRAGMENT_SIZE);
+        this.maxPeerPending = maxPeerPending;
+        this.maxPeerBytes = maxPeerBytes;
+        this.timeoutMs = timeoutMs;
+    }
+    
+    // Retorna o payload completo quando chega o último fragmento; senão null
+    public byte[] accept(byte[] data, int offset, int length, InetSocketAddress peer) {
+        long now = System.currentTimeMillis();
+        if (received.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep(now);
+        }
+        
+        int index = Fragmenter.index(data, offset);
+        int count = Fragmenter.count(data, offset);
+        int dataLength = length - Fragmenter.HEADER_SIZE;
+        if (dataLength == 0 || count == 0 || count > maxCount || index >= count
+                || (long) count * dataLength > maxMessage + dataLength) {
+            rejected.increment();
+            return null;
+        }
+        
+        Key key = new Key(peer, Fragmenter.messageId(data, offset));
+        InetAddress source = peer.getAddress();
+        Partial partial = pending.get(key);
+        if (partial == null) {
+            long overhead = (long) count * REFERENCE_BYTES;
+            if (!fits(source, overhead)) {
+                sweep(now);
+                if (!fits(source, overhead)) {
+                    rejected.increment();
+                    return null;
+                }
+            }
+            // Cobrada antes de a mensagem ficar visível para outro fragmento
+            partial = pending.computeIfAbsent(key, k -> {
+                retainedBytes.addAndGet(overhead);
+                charge(source, 1, overhead);
+                return new Partial(count, overhead, now);
+            });
+        }
+        
+        synchronized (partial) {
+            if (partial.done || partial.parts.length != count || partial.parts[index] != null) {
+                return null;
+            }
+            if (retainedBytes.get() + dataLength > maxBytes || partial.bytes + dataLength > maxMessage
+                    || usage(source).bytes + dataLength > maxPeerBytes) {
+                rejected.increment();
+                discard(key, partial);
+                return null;
+            }
+            
+            byte[] part = new byte[dataLength];
+            System.arraycopy(data, offset + Fragmenter.HEADER_SIZE, part, 0, dataLength);
+            partial.parts[index] = part;
+            partial.bytes += dataLength;
+            partial.missing--;
+            retainedBytes.addAndGet(dataLength);
+            charge(source, 0, dataLength);
+            if (partial.missing > 0) {
+                return null;
+            }
+            
+            byte[] whole = new byte[partial.bytes];
+            int position = 0;
+            for (byte[] piece : partial.parts) {
+                System.arraycopy(piece, 0, whole, position, piece.length);
+                position += piece.length;
+            }
+            discard(key, partial);
+            completed.increment();
+            return whole;
+        }
+    }
+    
+    // Chamado com o lock da mensagem (ou na limpeza, que o obtém)
+    private void discard(Key key, Partial partial) {
+        partial.done = true;
+        long held = partial.bytes + partial.overhead;
+        retainedBytes.addAndGet(-held);
+        charge(key.peer.getAddress(), -1, -held);
+        pending.remove(key, partial);
+    }
+    
+    // Cabe mais uma mensagem pendente que já retém overhead bytes?
+    private boolean fits(InetAddress source, long overhead) {
+        Usage usage = usage(source);
+        return pending.size() < maxPending && usage.messages < maxPeerPending
+                && retainedBytes.get() + overhead <= maxBytes && usage.bytes + overhead <= maxPeerBytes;
+    }
+    
+    private Usage usage(InetAddress source) {
+        return peers.getOrDefault(source, Usage.NONE);
+    }
+    
+    // Atualiza o uso do endereço; a entrada sai quando não sobra nada pendente
+    private void charge(InetAddress source, int messages, long bytes) {
+        peers.compute(source, (address, current) -> {
+            Usage base = current != null ? current : Usage.NONE;
+            Usage next = new Usage(base.messages + messages, base.bytes + bytes);
+            return next.messages <= 0 ? null : next;
+        });
+    }
+    
+    private void sweep(long now) {
+        Iterator<Map.Entry<Key, Partial>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Partial> entry = it.next();
+            Partial partial = entry.getValue();
+            if (now - partial.createdAt > timeoutMs) {
+                synchronized (partial) {
+                    if (!partial.done) {
+                        discard(entry.getKey(), partial);
+                        expired.increment();
+                    }
+                }
+            }
+        }
+    }
+    
+    public int getPending() { return pending.size(); }
+    public long getRetainedBytes() { return retainedBytes.get(); }
+    public long getCompleted() { return completed.sum(); }
+    public long getExpired() { return expired.sum(); }
+    public long getRejected() { return rejected.sum(); }
+    
+    private static final class Key {
+        final InetSocketAddress peer;
+        final int messageId;
+        
+        Key(InetSocketAddress peer, int messageId) {
+            this.peer = peer;
+            this.messageId = messageId;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return messageId == key.messageId && peer.equals(key.peer);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * peer.hashCode() + messageId;
+        }
+    }
+    
+    private static final class Usage {
+        static final Usage NONE = new Usage(0, 0);
+        final int messages;
+        final long bytes;
+        
+        Usage(int messages, long bytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+    }
+    
+    private static final class Partial {
+        final byte[][] parts;
+        // Bytes cobrados pela tabela de pedaços
+        final long overhead;
+        final long createdAt;
+        int missing;
+        int bytes;
+        boolean done;
+        
+        Partial(int count, long overhead, long createdAt) {
+            this.parts = new byte[count][];
+            this.overhead = overhead;
+            this.missing = count;
+            this.createdAt = createdAt;
+        }
+    }
+}
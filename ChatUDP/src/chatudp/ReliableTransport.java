@@ -0,0 +1,440 @@
+package chatudp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Camada opcional de entrega confiável e ordenada sobre UDP. Cada par
+// (endereço:porta) tem uma sessão com números de sequência próprios em cada
+// sentido. O receptor envia ACKs cumulativos e NACKs seletivos para os buracos
+// que encontra; o emissor retransmite só o que foi pedido (ou o que estourou o
+// RTO) e controla quantos pacotes ficam em voo com uma janela de congestionamento
+// no estilo AIMD, em vez de esperar cada ACK (stop-and-wait).
+//
+// Envelope (o byte mágico não colide com texto nem com o protocolo binário):
+//
+//   DATA: magic(1) tipo(1) época(4) seq(4) payload...
+//   ACK:  magic(1) tipo(1) época(4) seqCumulativa(4)
+//   NACK: magic(1) tipo(1) época(4) n(1) seq(4) * n
+//   RESYNC: magic(1) tipo(1) época(4)
+//
+// A época vem do relógio (ms) quando a sessão de envio começa, então uma
+// época mais nova (comparada com aritmética que tolera a volta do int) indica
+// que o outro lado reiniciou. O receptor só adota uma época mais nova no seq 1
+// dela e zera o estado de recepção; retransmissões atrasadas de épocas
+// anteriores são descartadas. Pacote de época desconhecida com seq > 1 (o seq
+// 1 se perdeu, ou o receptor perdeu o estado) gera um RESYNC: o emissor
+// reenvia o seq 1 se ainda o tem, senão recomeça numa época nova e renumera
+// o que está em voo a partir do 1. A época também é renovada com a sessão
+// ociosa depois de EPOCH_LIFETIME_MS, para a comparação não dar a volta.
+//
+// Contra tempestade de NACKs: cada pacote fora de ordem faz o receptor pedir
+// de novo todos os buracos, então o emissor ignora NACK de pacote reenviado
+// há menos de um RTT (o pedido é anterior à cópia que já foi). Com buracos
+// pendentes o timer repete o NACK a cada NACK_INTERVAL_MS, sem depender de
+// chegar outro pacote. Só reenvios por RTO contam para MAX_RETRIES: os
+// pedidos por NACK provam que o par está vivo.
+class ReliableTransport {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private static final AsyncLogger.Sampled BACKLOG_FULL = LOG.sampled(AsyncLogger.Level.WARN, AsyncLogger.OVERLOAD_SAMPLE);
+    static final byte MAGIC = (byte) 0xC8;
+    private static final byte DATA = 1;
+    private static final byte ACK = 2;
+    private static final byte NACK = 3;
+    private static final byte RESYNC = 4;
+    private static final int DATA_HEADER = 10;
+    
+    private static final double INITIAL_WINDOW = 4;
+    private static final double MAX_WINDOW = 1024;
+    private static final int MAX_OUT_OF_ORDER = 1024;
+    private static final int MAX_BACKLOG = 8192;
+    private static final int MAX_NACKS = 32;
+    private static final int MAX_RETRIES = 10;
+    private static final long INITIAL_RTO_MS = 300;
+    private static final long MIN_RTO_MS = 50;
+    private static final long MAX_RTO_MS = 2000;
+    private static final long NACK_INTERVAL_MS = 50;
+    private static final long IDLE_SESSION_MS = 5 * 60 * 1000;
+    private static final long EPOCH_LIFETIME_MS = 24 * 60 * 60 * 1000;
+    
+    private final RawSender rawSender;
+    private final Delivery delivery;
+    private final Map<InetSocketAddress, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    
+    public ReliableTransport(RawSender rawSender, Delivery delivery) {
+        this.rawSender = rawSender;
+        this.delivery = delivery;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-reliable-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::checkTimeouts, 20, 20, TimeUnit.MILLISECONDS);
+    }
+    
+    public static boolean isEnvelope(byte[] data, int offset, int length) {
+        return length >= 2 && data[offset] == MAGIC;
+    }
+    
+    // True se o par já falou conosco pela camada confiável
+    public boolean isReliablePeer(InetSocketAddress peer) {
+        Session session = sessions.get(peer);
+        return session != null && session.recvStarted;
+    }
+    
+    public void send(InetSocketAddress peer, byte[] payload) {
+        Session session = sessions.computeIfAbsent(peer, Session::new);
+        synchronized (session) {
+            if (session.backlog.size() >= MAX_BACKLOG) {
+                BACKLOG_FULL.log("Fila confiável cheia para {}, mensagem descartada", peer, null);
+                return;
+            }
+            session.backlog.add(payload);
+            session.pump();
+        }
+    }
+    
+    // Chamado pela thread de recepção para todo datagrama com o byte mágico
+    public void onPacket(byte[] data, int offset, int length, InetSocketAddress peer) {
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        in.get();
+        byte type = in.get();
+        if (in.remaining() < 4) return;
+        int epoch = in.getInt();
+        Session session = sessions.computeIfAbsent(peer, Session::new);
+        
+        synchronized (session) {
+            session.lastActivity = System.currentTimeMillis();
+            switch (type) {
+                case DATA:
+                    if (in.remaining() >= 4) {
+                        session.onData(epoch, in.getInt(), data, in.position(), in.remaining());
+                    }
+                    break;
+                case ACK:
+                    if (in.remaining() >= 4 && epoch == session.sendEpoch) {
+                        session.onAck(in.getInt());
+                    }
+                    break;
+                case NACK:
+                    if (in.remaining() >= 1 && epoch == session.sendEpoch) {
+                        int count = in.get() & 0xFF;
+                        for (int i = 0; i < count && in.remaining() >= 4; i++) {
+                            session.onNack(in.getInt());
+                        }
+                        session.onLossSignal();
+                        session.pump();
+                    }
+                    break;
+                case RESYNC:
+                    if (epoch == session.sendEpoch) {
+                        session.onResync();
+                    }
+                    break;
+            }
+        }
+    }
+    
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+    
+    private void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            synchronized (session) {
+                if (!session.checkTimeout(now)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+    
+    private void sendRaw(InetSocketAddress peer, byte[] data, int length) {
+        try {
+            rawSender.send(data, length, peer);
+        } catch (IOException e) {
+            LOG.error("Erro enviando mensagem: {}", e.getMessage());
+        }
+    }
+    
+    private static class Outgoing {
+        final int seq;
+        final byte[] packet;
+        long sentAt;
+        int retries;
+        // Reenvios por RTO vencido, sem resposta do par
+        int timeouts;
+        
+        Outgoing(int seq, byte[] packet) {
+            this.seq = seq;
+            this.packet = packet;
+        }
+    }
+    
+    private class Session {
+        final InetSocketAddress peer;
+        long lastActivity = System.currentTimeMillis();
+        
+        // Envio
+        int sendEpoch = (int) System.currentTimeMillis();
+        long epochStartedAt = System.currentTimeMillis();
+        long lastAckAt;
+        int nextSeq = 1;
+        final TreeMap<Integer, Outgoing> unacked = new TreeMap<>();
+        final ArrayDeque<byte[]> backlog = new ArrayDeque<>();
+        double cwnd = INITIAL_WINDOW;
+        double ssthresh = MAX_WINDOW;
+        int recoveryUntil = 0;
+        long srtt = -1;
+        long rttvar = 0;
+        long rto = INITIAL_RTO_MS;
+        
+        // Recepção
+        boolean recvStarted = false;
+        int recvEpoch;
+        int expected = 1;
+        final TreeMap<Integer, byte[]> outOfOrder = new TreeMap<>();
+        long lastNackAt;
+        
+        Session(InetSocketAddress peer) {
+            this.peer = peer;
+        }
+        
+        // Coloca em voo tudo o que a janela permitir
+        void pump() {
+            if (unacked.isEmpty() && !backlog.isEmpty()
+                    && System.currentTimeMillis() - epochStartedAt > EPOCH_LIFETIME_MS) {
+                restartEpoch();
+            }
+            while (!backlog.isEmpty() && unacked.size() < (int) cwnd) {
+                byte[] payload = backlog.poll();
+                int seq = nextSeq++;
+                byte[] packet = ByteBuffer.allocate(DATA_HEADER + payload.length)
+                        .put(MAGIC).put(DATA).putInt(sendEpoch).putInt(seq).put(payload).array();
+                Outgoing out = new Outgoing(seq, packet);
+                out.sentAt = System.currentTimeMillis();
+                unacked.put(seq, out);
+                sendRaw(peer, packet, packet.length);
+            }
+        }
+        
+        void onAck(int cumulative) {
+            int acked = 0;
+            long now = System.currentTimeMillis();
+            lastAckAt = now;
+            while (!unacked.isEmpty() && unacked.firstKey() <= cumulative) {
+                Outgoing out = unacked.pollFirstEntry().getValue();
+                // Algoritmo de Karn: só mede RTT de pacotes não retransmitidos
+                if (out.retries == 0) {
+                    updateRtt(now - out.sentAt);
+                }
+                acked++;
+            }
+            if (acked > 0) {
+                if (cwnd < ssthresh) {
+                    cwnd = Math.min(MAX_WINDOW, cwnd + acked);
+                } else {
+                    cwnd = Math.min(MAX_WINDOW, cwnd + (double) acked / cwnd);
+                }
+            }
+            pump();
+        }
+        
+        void onNack(int seq) {
+            Outgoing out = unacked.get(seq);
+            if (out == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (out.retries > 0 && now - out.sentAt < (srtt >= 0 ? srtt : rto)) {
+                return;
+            }
+            retransmit(out, now);
+        }
+        
+        // O receptor não conhece esta época: reenvia o seq 1 se ainda está em
+        // voo; senão o receptor perdeu o estado e a época recomeça. RESYNC
+        // chegado menos de um RTO depois de um ACK pode ser anterior a ele e
+        // é ignorado (renumerar entregaria de novo o que o ACK ainda não cobriu)
+        void onResync() {
+            if (unacked.containsKey(1)) {
+                onNack(1);
+                return;
+            }
+            if (nextSeq == 1 || System.currentTimeMillis() - lastAckAt < rto) {
+                return;
+            }
+            LOG.warn("Par {} perdeu o estado da sessão confiável, recomeçando a época", peer);
+            restartEpoch();
+            pump();
+        }
+        
+        // Época nova (sempre mais nova que a atual); o que estava em voo volta
+        // para a frente da fila e é renumerado a partir do 1
+        private void restartEpoch() {
+            int clock = (int) System.currentTimeMillis();
+            sendEpoch = clock - sendEpoch > 0 ? clock : sendEpoch + 1;
+            epochStartedAt = System.currentTimeMillis();
+            Iterator<Outgoing> inFlight = unacked.descendingMap().values().iterator();
+            while (inFlight.hasNext()) {
+                byte[] packet = inFlight.next().packet;
+                byte[] payload = new byte[packet.length - DATA_HEADER];
+                System.arraycopy(packet, DATA_HEADER, payload, 0, payload.length);
+                backlog.addFirst(payload);
+            }
+            unacked.clear();
+            nextSeq = 1;
+            cwnd = INITIAL_WINDOW;
+            recoveryUntil = 0;
+        }
+        
+        // Redução multiplicativa, no máximo uma vez por janela em voo
+        void onLossSignal() {
+            if (unacked.isEmpty() || unacked.firstKey() < recoveryUntil) {
+                return;
+            }
+            ssthresh = Math.max(2, cwnd / 2);
+            cwnd = ssthresh;
+            recoveryUntil = nextSeq;
+        }
+        
+        void onData(int epoch, int seq, byte[] data, int offset, int length) {
+            if (!recvStarted || epoch != recvEpoch) {
+                if (recvStarted && epoch - recvEpoch < 0) {
+                    // Retransmissão atrasada de uma época anterior
+                    return;
+                }
+                if (seq != 1) {
+                    sendResync(epoch);
+                    return;
+                }
+                recvStarted = true;
+                recvEpoch = epoch;
+                expected = 1;
+                outOfOrder.clear();
+            }
+            
+            if (seq == expected) {
+                delivery.deliver(data, offset, length, peer);
+                expected++;
+                // Entrega o que estava esperando este buraco ser preenchido
+                byte[] next;
+                while ((next = outOfOrder.remove(expected)) != null) {
+                    delivery.deliver(next, 0, next.length, peer);
+                    expected++;
+                }
+            } else if (seq > expected) {
+                if (outOfOrder.size() < MAX_OUT_OF_ORDER) {
+                    byte[] copy = new byte[length];
+                    System.arraycopy(data, offset, copy, 0, length);
+                    outOfOrder.put(seq, copy);
+                }
+                sendNack(seq);
+            }
+            // seq < expected: duplicata, só reconfirma
+            sendAck();
+        }
+        
+        private void sendAck() {
+            byte[] ack = ByteBuffer.allocate(10)
+                    .put(MAGIC).put(ACK).putInt(recvEpoch).putInt(expected - 1).array();
+            sendRaw(peer, ack, ack.length);
+        }
+        
+        private void sendResync(int epoch) {
+            byte[] resync = ByteBuffer.allocate(6).put(MAGIC).put(RESYNC).putInt(epoch).array();
+            sendRaw(peer, resync, resync.length);
+        }
+        
+        private void sendNack(int received) {
+            ByteBuffer nack = ByteBuffer.allocate(7 + 4 * MAX_NACKS)
+                    .put(MAGIC).put(NACK).putInt(recvEpoch).put((byte) 0);
+            int count = 0;
+            for (int seq = expected; seq < received && count < MAX_NACKS; seq++) {
+                if (!outOfOrder.containsKey(seq)) {
+                    nack.putInt(seq);
+                    count++;
+                }
+            }
+            if (count == 0) return;
+            lastNackAt = System.currentTimeMillis();
+            nack.put(6, (byte) count);
+            sendRaw(peer, nack.array(), nack.position());
+        }
+        
+        private void retransmit(Outgoing out, long now) {
+            out.retries++;
+            out.sentAt = now;
+            sendRaw(peer, out.packet, out.packet.length);
+        }
+        
+        private void updateRtt(long sample) {
+            if (srtt < 0) {
+                srtt = sample;
+                rttvar = sample / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+                srtt = (7 * srtt + sample) / 8;
+            }
+            rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, srtt + 4 * rttvar));
+        }
+        
+        // Retorna false quando a sessão deve ser descartada
+        boolean checkTimeout(long now) {
+            if (!outOfOrder.isEmpty() && now - lastNackAt >= NACK_INTERVAL_MS) {
+                sendNack(outOfOrder.lastKey());
+            }
+            if (unacked.isEmpty()) {
+                return backlog.isEmpty() ? now - lastActivity < IDLE_SESSION_MS : true;
+            }
+            
+            Outgoing oldest = unacked.firstEntry().getValue();
+            if (oldest.timeouts >= MAX_RETRIES && now - oldest.sentAt >= rto) {
+                LOG.warn("Par {} não responde, sessão confiável descartada", peer);
+                return false;
+            }
+            
+            // Retransmite todos os pacotes cujo RTO venceu, não só o mais antigo,
+            // para que vários buracos na mesma janela se recuperem juntos
+            boolean expired = false;
+            for (Outgoing out : unacked.values()) {
+                if (now - out.sentAt >= rto) {
+                    out.timeouts++;
+                    retransmit(out, now);
+                    expired = true;
+                }
+            }
+            
+            if (expired && unacked.firstKey() >= recoveryUntil) {
+                // Timeout: reduz a janela pela metade e faz backoff do RTO
+                ssthresh = Math.max(2, cwnd / 2);
+                cwnd = ssthresh;
+                recoveryUntil = nextSeq;
+                rto = Math.min(MAX_RTO_MS, rto * 2);
+            }
+            return true;
+        }
+    }
+    
+    // Envio do datagrama bruto (socket ou canal de quem usa a camada)
+    interface RawSender {
+        void send(byte[] data, int length, InetSocketAddress peer) throws IOException;
+    }
+    
+    // Entrega em ordem do payload; o array só é válido durante a chamada
+    interface Delivery {
+        void deliver(byte[] data, int offset, int length, InetSocketAddress peer);
+    }
+}
@@ -0,0 +1,87 @@
+package chatudp;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sala de chat com inscritos, histórico e contadores próprios. A difusão de
+// uma mensagem da sala percorre só os inscritos, então o custo depende do
+// tamanho da sala e não de quantos clientes estão conectados.
+class Room {
+    private final String name;
+    // Inscritos por nome de usuário; substituído no re-registro do cliente
+    private final Map<String, ClientInfo> subscribers = new ConcurrentHashMap<>();
+    private final MessageRing history;
+    private final Map<String, Integer> messageCount = new ConcurrentHashMap<>();
+    private final LongAdder messages = new LongAdder();
+    // No cluster: nós com inscritos nesta sala, para onde o dono replica
+    private final Set<String> remoteNodes = ConcurrentHashMap.newKeySet();
+    // Última entrada, saída ou mensagem (ms), para o descarte por ociosidade
+    private volatile long lastActivity = System.currentTimeMillis();
+    
+    public Room(String name, int historyCapacity) {
+        this.name = name;
+        this.history = new MessageRing(historyCapacity);
+    }
+    
+    // Retorna false se o cliente já estava inscrito
+    public boolean join(ClientInfo client) {
+        lastActivity = System.currentTimeMillis();
+        return subscribers.put(client.getUsername(), client) == null;
+    }
+    
+    public boolean leave(String username) {
+        lastActivity = System.currentTimeMillis();
+        return subscribers.remove(username) != null;
+    }
+    
+    // Troca a instância antiga do cliente pela nova, mantendo a inscrição
+    public void replace(ClientInfo previous, ClientInfo client) {
+        subscribers.replace(client.getUsername(), previous, client);
+    }
+    
+    public boolean isMember(String username) {
+        return subscribers.containsKey(username);
+    }
+    
+    public Message post(String username, byte[] text) {
+        Message msg = new Message(history.claim(), System.currentTimeMillis(), username, text);
+        history.publish(msg);
+        messageCount.merge(username, 1, Integer::sum);
+        messages.increment();
+        lastActivity = System.currentTimeMillis();
+        return msg;
+    }
+    
+    // Mensagem já sequenciada pelo nó dono da sala (réplica no cluster)
+    public void restore(Message msg) {
+        history.restore(msg);
+        messageCount.merge(msg.getUsername(), 1, Integer::sum);
+        messages.increment();
+        lastActivity = System.currentTimeMillis();
+    }
+    
+    public void addRemoteNode(String node) {
+        remoteNodes.add(node);
+    }
+    
+    public void removeRemoteNode(String node) {
+        remoteNodes.remove(node);
+    }
+    
+    // Sala sem inscritos (locais ou em outros nós) e sem movimento há idleMs
+    // pode ser descartada, com o histórico; quem voltar antes disso ainda o encontra
+    public boolean isIdle(long now, long idleMs) {
+        return subscribers.isEmpty() && remoteNodes.isEmpty() && now - lastActivity >= idleMs;
+    }
+    
+    public String getName() { return name; }
+    public Collection<ClientInfo> getSubscribers() { return subscribers.values(); }
+    public int getSubscriberCount() { return subscribers.size(); }
+    public Set<String> getRemoteNodes() { return remoteNodes; }
+    public MessageRing getHistory() { return history; }
+    public Map<String, Integer> getMessageCount() { return messageCount; }
+    public long getMessages() { return messages.sum(); }
+}
@@ -0,0 +1,104 @@
+package chatudp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Recepção em N sockets ligados à mesma porta com SO_REUSEPORT, cada um com
+// sua thread. O kernel distribui os datagramas entre os sockets pelo hash do
+// fluxo (endereço e porta de origem), então cada cliente cai sempre no mesmo
+// shard e as filas de recepção deixam de ser um gargalo único. O estado
+// (clientes, histórico) continua compartilhado no servidor.
+class ShardedIngress {
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<NioReceiveEngine> engines = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    
+    public ShardedIngress(int port, int shards, int bufferSize) throws IOException {
+        if (shards > 1 && !supportsReusePort()) {
+            AsyncLogger.get().warn("SO_REUSEPORT não suportado nesta plataforma, usando um único socket");
+            shards = 1;
+        }
+        
+        try {
+            for (int i = 0; i < shards; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels.add(channel);
+                if (shards > 1) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port));
+                engines.add(new NioReceiveEngine(channel, bufferSize));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Porta ocupada no meio do caminho: não deixa os shards já abertos para trás
+            closeChannels();
+            throw e;
+        }
+    }
+    
+    // O canal da consulta só existe para perguntar; fecha na hora
+    private static boolean supportsReusePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+    
+    // Canal usado para os envios; qualquer shard sai pela mesma porta
+    public DatagramChannel getPrimaryChannel() {
+        return channels.get(0);
+    }
+    
+    public int getShardCount() {
+        return engines.size();
+    }
+    
+    // Shards 1..N-1 em threads próprias; o shard 0 roda na thread que chamou
+    public void run(NioReceiveEngine.PacketHandler handler) {
+        for (int i = 1; i < engines.size(); i++) {
+            NioReceiveEngine engine = engines.get(i);
+            Thread thread = new Thread(() -> engine.run(handler), "chat-shard-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        engines.get(0).run(handler);
+    }
+    
+    public void stop() {
+        for (NioReceiveEngine engine : engines) {
+            engine.stop();
+        }
+        closeChannels();
+    }
+    
+    private void closeChannels() {
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Já fechado
+            }
+        }
+    }
+    
+    public long getReceived(int shard) { return engines.get(shard).getReceived(); }
+    public long getDropped(int shard) { return engines.get(shard).getDropped(); }
+    
+    // Ex.: "shard 0: 1200 recebidos, 0 descartados; shard 1: ..."
+    public String describe() {
+        StringBuilder stats = new StringBuilder();
+        for (int i = 0; i < engines.size(); i++) {
+            if (i > 0) {
+                stats.append("; ");
+            }
+            stats.append("shard ").append(i).append(": ")
+                 .append(getReceived(i)).append(" recebidos, ")
+                 .append(getDropped(i)).append(" descartados");
+        }
+        return stats.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package chatudp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Campos de um comando texto "NOME|campo|campo|resto", achados direto nos
+// bytes do datagrama: '|' é ASCII e nunca aparece dentro de um caractere
+// UTF-8 de vários bytes. Nada vira String até alguém pedir o campo, e o
+// texto da mensagem segue em bytes até o histórico e a difusão.
+//
+// Como String.split(regex, limite): com limite N o último campo leva o resto
+// da linha, '|' incluído. Pedir um campo que não existe é erro de parse.
+final class TextFields {
+    private static final int MAX_LIMIT = 4;
+    // Nomes que o servidor despacha: o comando reaproveita a constante em vez
+    // de decodificar, e o RateLimiter limita todos eles
+    static final String[] NAMES = {
+        "MESSAGE", "HEARTBEAT", "GET_MESSAGES", "ROOM_MESSAGE", "REGISTER", "GET_USERS",
+        "GET_REPORT", "GET_ROSTER", "GET_METRICS", "JOIN", "LEAVE", "DISCONNECT"
+    };
+    private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            NAME_BYTES[i] = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final byte[] data;
+    private final int offset;
+    private final int end;
+    // Posição dos primeiros separadores
+    private final int[] bars = new int[MAX_LIMIT - 1];
+    private final int barCount;
+    private int limit = 3;
+
+    public TextFields(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.end = offset + length;
+        int found = 0;
+        for (int i = offset; i < end && found < bars.length; i++) {
+            if (data[i] == '|') {
+                bars[found++] = i;
+            }
+        }
+        this.barCount = found;
+    }
+
+    // Mesmo efeito do limite de String.split; vale para as chamadas seguintes
+    public TextFields limit(int limit) {
+        this.limit = Math.min(limit, MAX_LIMIT);
+        return this;
+    }
+
+    public int count() {
+        return Math.min(barCount, limit - 1) + 1;
+    }
+
+    public String name() {
+        int nameEnd = barCount > 0 ? bars[0] : end;
+        for (int i = 0; i < NAMES.length; i++) {
+            if (Arrays.equals(data, offset, nameEnd, NAME_BYTES[i], 0, NAME_BYTES[i].length)) {
+                return NAMES[i];
+            }
+        }
+        return new String(data, offset, nameEnd - offset, StandardCharsets.UTF_8);
+    }
+
+    public String string(int index) {
+        return new String(data, start(index), end(index) - start(index), StandardCharsets.UTF_8);
+    }
+
+    // Cópia dos bytes do campo, sem decodificar
+    public byte[] bytes(int index) {
+        return Arrays.copyOfRange(data, start(index), end(index));
+    }
+
+    public boolean startsWith(int index, String prefix) {
+        int from = start(index);
+        byte[] ascii = prefix.getBytes(StandardCharsets.US_ASCII);
+        return end(index) - from >= ascii.length
+                && Arrays.equals(data, from, from + ascii.length, ascii, 0, ascii.length);
+    }
+
+    public long number(int index) {
+        return number(index, 0);
+    }
+
+    // Decimal a partir de skip bytes do início do campo; espaços em volta são
+    // ignorados, como no trim()
+    public long number(int index, int skip) {
+        int from = start(index) + skip;
+        int to = end(index);
+        while (from < to && (data[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (data[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        boolean negative = from < to && data[from] == '-';
+        if (from < to && (data[from] == '-' || data[from] == '+')) {
+            from++;
+        }
+        if (from == to) {
+            throw new NumberFormatException("Campo " + index + " sem número");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Campo " + index + " não numérico");
+            }
+            value = Math.addExact(Math.multiplyExact(value, 10), digit);
+        }
+        return negative ? -value : value;
+    }
+
+    private int start(int index) {
+        if (index >= count()) {
+            throw new IllegalArgumentException("Campo " + index + " ausente");
+        }
+        return index == 0 ? offset : bars[index - 1] + 1;
+    }
+
+    private int end(int index) {
+        return index < count() - 1 ? bars[index] : end;
+    }
+}
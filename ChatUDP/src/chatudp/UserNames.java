@@ -0,0 +1,42 @@
+package chatudp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Tabela de nomes de usuário do processo: cada nome distinto ganha um id
+// inteiro, e o histórico guarda só o id (4 bytes) em vez de uma String por
+// mensagem. Os nomes nunca saem da tabela; o total acompanha a base de
+// usuários, não o volume de mensagens.
+final class UserNames {
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // Reescrito a cada nome novo para publicar a posição preenchida
+    private static volatile String[] names = new String[256];
+    private static int count;
+
+    private UserNames() {
+    }
+
+    public static int idOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : register(name);
+    }
+
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    private static synchronized int register(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        String[] current = names;
+        if (count == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[count] = name;
+        names = current;
+        ids.put(name, count);
+        return count++;
+    }
+}
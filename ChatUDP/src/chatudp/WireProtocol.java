@@ -0,0 +1,189 @@
+package chatudp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Protocolo binário versionado, negociado no REGISTER. Formato do quadro:
+//
+//   magic(1) versão(1) opcode(1) id(4) nCampos(2) campos...
+//
+// Cada campo é um tamanho de 2 bytes seguido dos dados: texto em UTF-8 ou
+// um long de 8 bytes (big-endian) para números. O byte mágico nunca aparece
+// no início de um comando texto, então os dois formatos convivem na mesma porta.
+final class WireProtocol {
+    static final byte MAGIC = (byte) 0xC7;
+    static final byte VERSION = 3;
+    // Primeira versão com presença incremental (USER_JOINED/LEFT/STATUS)
+    static final byte PRESENCE_VERSION = 2;
+    // Primeira versão que remonta fragmentos (ver Fragmenter)
+    static final byte FRAGMENT_VERSION = 3;
+    static final int HEADER_SIZE = 9;
+    
+    // Cliente -> servidor
+    static final byte REGISTER = 0x01;
+    static final byte MESSAGE = 0x02;
+    static final byte HEARTBEAT = 0x03;
+    static final byte GET_USERS = 0x04;
+    static final byte GET_MESSAGES = 0x05;
+    static final byte GET_REPORT = 0x06;
+    static final byte DISCONNECT = 0x07;
+    static final byte GET_ROSTER = 0x08;
+    // Salas: usuário, sala (e última seq conhecida no JOIN / texto no ROOM_MESSAGE)
+    static final byte JOIN = 0x09;
+    static final byte LEAVE = 0x0A;
+    static final byte ROOM_MESSAGE = 0x0B;
+    
+    // Servidor -> cliente
+    static final byte REGISTER_OK = 0x41;
+    static final byte NEW_MESSAGE = 0x42;
+    static final byte HISTORY_MESSAGE = 0x43;
+    static final byte HISTORY_END = 0x44;
+    static final byte USER_LIST = 0x45;
+    static final byte REPORT = 0x46;
+    static final byte ERROR = 0x47;
+    static final byte HISTORY_BATCH = 0x48;
+    
+    // Presença (v2): versão do roster seguida de pares usuário/online
+    static final byte USER_JOINED = 0x49;
+    static final byte USER_LEFT = 0x4A;
+    static final byte USER_STATUS = 0x4B;
+    // Página do snapshot: versão, página, mais, pares usuário/online
+    static final byte USER_SNAPSHOT = 0x4C;
+    
+    // Salas: sala, inscritos e última seq / sala / sala seguida do registro
+    static final byte ROOM_JOINED = 0x4D;
+    static final byte ROOM_LEFT = 0x4E;
+    static final byte ROOM_NEW_MESSAGE = 0x4F;
+    // Página do histórico da sala: sala seguida dos campos do HISTORY_BATCH
+    static final byte ROOM_HISTORY_BATCH = 0x50;
+    
+    // Entre nós do cluster (ClusterLink); o primeiro campo é sempre o nó de origem
+    static final byte LINK_HELLO = 0x61;
+    static final byte LINK_ROOM_POST = 0x62;
+    static final byte LINK_ROOM_MESSAGE = 0x63;
+    static final byte LINK_SUBSCRIBE = 0x64;
+    static final byte LINK_UNSUBSCRIBE = 0x65;
+    static final byte LINK_PRESENCE = 0x66;
+    // Sinal de vida entre nós; qualquer quadro recebido também conta
+    static final byte LINK_PING = 0x67;
+    
+    private WireProtocol() {
+    }
+    
+    public static boolean isFrame(byte[] data, int length) {
+        return isFrame(data, 0, length);
+    }
+    
+    public static boolean isFrame(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE && data[offset] == MAGIC;
+    }
+    
+    public static boolean isFrame(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.get(buffer.position()) == MAGIC;
+    }
+    
+    // Leitura direta do ByteBuffer: o cabeçalho é lido por posição absoluta e
+    // os campos avançam a posição do buffer, sem arrays intermediários
+    public static byte version(ByteBuffer frame) { return frame.get(frame.position() + 1); }
+    public static byte opcode(ByteBuffer frame) { return frame.get(frame.position() + 2); }
+    public static int messageId(ByteBuffer frame) { return frame.getInt(frame.position() + 3); }
+    public static int fieldCount(ByteBuffer frame) { return frame.getShort(frame.position() + 7) & 0xFFFF; }
+    
+    public static void skipHeader(ByteBuffer frame) {
+        frame.position(frame.position() + HEADER_SIZE);
+    }
+    
+    public static String readString(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        String value;
+        if (frame.hasArray()) {
+            value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            frame.get(frame.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        frame.position(frame.position() + length);
+        return value;
+    }
+    
+    // Campo de texto sem decodificar: os bytes UTF-8 como vieram
+    public static byte[] readBytes(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return bytes;
+    }
+    
+    public static long readLong(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        if (length != Long.BYTES) {
+            throw new IllegalArgumentException("Campo numérico com tamanho " + length);
+        }
+        return frame.getLong();
+    }
+    
+    // Monta um quadro; o número de campos é preenchido ao final
+    static final class Writer {
+        private ByteBuffer buffer;
+        private int fields;
+        
+        Writer(byte opcode, int messageId) {
+            buffer = ByteBuffer.allocate(128);
+            buffer.put(MAGIC).put(VERSION).put(opcode).putInt(messageId).putShort((short) 0);
+        }
+        
+        Writer putString(String value) {
+            return putUtf8(value.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        // Texto já em UTF-8 (por exemplo, o de uma Message)
+        Writer putUtf8(byte[] bytes) {
+            if (bytes.length > 0xFFFF) {
+                bytes = Arrays.copyOf(bytes, 0xFFFF);
+            }
+            ensure(2 + bytes.length);
+            buffer.putShort((short) bytes.length).put(bytes);
+            fields++;
+            return this;
+        }
+        
+        Writer putLong(long value) {
+            ensure(2 + Long.BYTES);
+            buffer.putShort((short) Long.BYTES).putLong(value);
+            fields++;
+            return this;
+        }
+        
+        // Campos já codificados (por exemplo, registros de uma página do histórico)
+        Writer putEncoded(byte[] encoded, int length, int fieldCount) {
+            ensure(length);
+            buffer.put(encoded, 0, length);
+            fields += fieldCount;
+            return this;
+        }
+        
+        // Apenas os campos, sem o cabeçalho (para usar com putEncoded)
+        byte[] fieldsToByteArray() {
+            return Arrays.copyOfRange(buffer.array(), HEADER_SIZE, buffer.position());
+        }
+        
+        int getFieldCount() { return fields; }
+        int size() { return buffer.position(); }
+        
+        byte[] toByteArray() {
+            buffer.putShort(7, (short) fields);
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+        
+        private void ensure(int extra) {
+            if (buffer.remaining() < extra) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+}
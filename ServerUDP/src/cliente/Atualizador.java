@@ -9,6 +9,8 @@ package cliente;
  */
 public class Atualizador extends Thread{
     private Formulario form = null;
+    // Bem antes do fim do lease (15 s), para uma renovação perdida não derrubar a assinatura
+    private static final long RENOVACAO_MS = 5000;
     
     public Atualizador(){
         form = new Formulario();
@@ -19,11 +21,19 @@ public class Atualizador extends Thread{
         form.setVisible(true);
         
         while(true){
-            form.atualizeMensagens();
-            form.atualizaUsers();
+            long espera = 3000;
+            // Com assinatura, mensagens e presença chegam por push: só renova.
+            // Sem ela (recusada ou sem resposta), volta a perguntar a cada 3 s.
+            if(form.assina()){
+                espera = RENOVACAO_MS;
+            }else{
+                form.sendOnline();
+                form.atualizeMensagens();
+                form.atualizaUsers();
+            }
             
             try{
-                Thread.sleep(3000);
+                Thread.sleep(espera);
             }catch(InterruptedException ex){
                 System.out.println(ex.getMessage());
             }
@@ -4,7 +4,9 @@
  */
 package cliente;
 
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import javax.swing.JOptionPane;
 
 /**
@@ -14,14 +16,23 @@ import javax.swing.JOptionPane;
 public class Formulario extends javax.swing.JFrame {
     String username = null;
     String usuarios = null;
+    // Maior índice de mensagem já exibido; as atualizações pedem só o que vem depois
+    private int ultimoIndice = 0;
+    // Um socket para a tela toda, em vez de um por ação
+    private final MeuCliente cliente = MeuCliente.compartilhado();
+    // Assinatura aceita na última renovação: o servidor empurra as novidades
+    private volatile boolean assinado = false;
+    // Ficha do último ***DESAFIO***, repetida em cada ***SUBSCRIBE***
+    private volatile String ficha = "";
+    // Usuários mostrados: a lista completa substitui, ***ENTROU*** acrescenta
+    private final transient Set<String> online = new LinkedHashSet<>();
     /**
      * Creates new form Formulario
      */
     public Formulario() {
         initComponents();
         
-        MeuCliente cliente = new MeuCliente();
-        
+        cliente.setOuvinte(this::aplicaPush);
         txtServidor.setText(cliente.getNomeDNS());
         txtID.setText(JOptionPane.showInputDialog(null,"Informe seu IDENTIFICADOR"));
         username = txtID.getText();
@@ -208,10 +219,9 @@ public class Formulario extends javax.swing.JFrame {
             txtMensagem.requestFocus();
         }else{
             msg = "(" + txtID.getText()+"): "+ msg;
-            MeuCliente cliente = new MeuCliente();
-            String resposta = cliente.enviaMensagem("SEND_MESSAGE/" + msg);
+            String resposta = cliente.enviaMensagem("SEND_MESSAGE/" + msg + "/" + ultimoIndice);
             
-            txtArea.setText(resposta);
+            aplicaDelta(resposta);
             txtMensagem.setText("");
             txtMensagem.requestFocus();
         }
@@ -225,25 +235,133 @@ public class Formulario extends javax.swing.JFrame {
 
     
     public void atualizeMensagens(){
-        MeuCliente cliente = new MeuCliente();
-        String resposta = cliente.enviaMensagem("***ATUALIZE***/***");
-        txtArea.setText(resposta);
+        String resposta = cliente.enviaMensagem("***ATUALIZE***/" + ultimoIndice);
+        aplicaDelta(resposta);
+    }
+    
+    // "***DELTA***/<total>" seguido das mensagens novas, que são acrescentadas.
+    // Total menor que o já exibido indica servidor reiniciado: recomeça a área.
+    // Sem o cabeçalho, é o histórico completo de um servidor antigo.
+    private synchronized void aplicaDelta(String resposta){
+        if(!resposta.startsWith("***DELTA***/")){
+            if(!resposta.isEmpty()){
+                txtArea.setText(resposta);
+            }
+            return;
+        }
+        
+        int quebra = resposta.indexOf('\n');
+        if(quebra < 0){
+            return;
+        }
+        int total = Integer.parseInt(resposta.substring(12, quebra).trim());
+        // MeuCliente acrescenta uma quebra de linha ao fim da resposta
+        String novas = resposta.substring(quebra + 1);
+        if(novas.endsWith("\n")){
+            novas = novas.substring(0, novas.length() - 1);
+        }
+        
+        if(total < ultimoIndice){
+            txtArea.setText("\n");
+        }else if(total == ultimoIndice){
+            return;
+        }
+        txtArea.append(novas);
+        ultimoIndice = total;
+    }
+    
+    // Assina (ou renova) o push; false se o servidor recusou ou não respondeu,
+    // e aí o Atualizador volta ao polling
+    public boolean assina(){
+        String resposta = cliente.enviaMensagem("***SUBSCRIBE***/" + ultimoIndice + "/" + username + "/" + ficha);
+        if(resposta.startsWith("***DESAFIO***/")){
+            // Primeira assinatura ou ficha vencida: repete com a nova
+            ficha = resposta.substring(14).trim();
+            resposta = cliente.enviaMensagem("***SUBSCRIBE***/" + ultimoIndice + "/" + username + "/" + ficha);
+        }
+        if(!resposta.startsWith("***DELTA***/")){
+            assinado = false;
+            return false;
+        }
+        aplicaDelta(resposta);
+        if(!assinado){
+            // Presença só chega por push quando muda: a lista inicial vem daqui
+            assinado = true;
+            atualizaUsers();
+        }
+        return true;
+    }
+    
+    // Chega pela thread de recepção do MeuCliente, que não pode esperar resposta:
+    // se faltar algo, o delta é pedido sem bloquear
+    private void aplicaPush(String texto){
+        if(texto.startsWith("USERS")){
+            aplicaUsuarios(texto);
+            return;
+        }
+        if(texto.startsWith("***ENTROU***/")){
+            aplicaEntrada(texto.substring(13).trim());
+            return;
+        }
+        if(!texto.startsWith("***PUSH***/")){
+            return;
+        }
+        
+        int quebra = texto.indexOf('\n');
+        String[] cabecalho = texto.substring(0, quebra < 0 ? texto.length() : quebra).split("/");
+        int desde = Integer.parseInt(cabecalho[1]);
+        int total = Integer.parseInt(cabecalho[2]);
+        synchronized(this){
+            if(total <= ultimoIndice){
+                return;
+            }
+            if(desde == ultimoIndice && quebra >= 0){
+                txtArea.append(texto.substring(quebra + 1));
+                ultimoIndice = total;
+                return;
+            }
+        }
+        // Push perdido ou fora de ordem: o delta completa o que falta.
+        // O "\n" extra imita a resposta de enviaMensagem, que aplicaDelta espera
+        cliente.enviaAsync("***ATUALIZE***/" + ultimoIndice)
+                .thenAccept(resposta -> aplicaDelta(resposta + "\n"));
     }
+    
      public void sendOnline(){
-        MeuCliente cliente = new MeuCliente();
-        String resposta = cliente.enviaMensagem("***ONLINE***/" + username);
-        txtArea.setText(resposta);
+        // Não precisa esperar: segue em paralelo com as atualizações
+        cliente.enviaAsync("***ONLINE***/" + username);
     }
     
     public void atualizaUsers(){
-        MeuCliente cliente = new MeuCliente();
-        String resposta = cliente.enviaMensagem("***GET_USERS***/***").replace("\n", "");
-        String[] info = resposta.split("/");
-        areaUsuario.setText("");
-        for (int i = 1;i < info.length;i++){
-            areaUsuario.setText(areaUsuario.getText()+ info[i] + " (online)\n");
+        aplicaUsuarios(cliente.enviaMensagem("***GET_USERS***/***"));
+    }
+    
+    private void aplicaUsuarios(String resposta){
+        String[] info = resposta.replace("\n", "").split("/");
+        synchronized(online){
+            online.clear();
+            for (int i = 1;i < info.length;i++){
+                online.add(info[i]);
+            }
+            mostraUsuarios();
         }
-        
+    }
+    
+    // Push de presença com só quem ficou online
+    private void aplicaEntrada(String usuario){
+        synchronized(online){
+            if(!usuario.isEmpty() && online.add(usuario)){
+                mostraUsuarios();
+            }
+        }
+    }
+    
+    private void mostraUsuarios(){
+        StringBuilder texto = new StringBuilder();
+        for(String usuario : online){
+            texto.append(usuario).append(" (online)\n");
+        }
+        areaUsuario.setText(texto.toString());
     }
     
     public int contarChar(String texto, char c) {
@@ -10,86 +10,252 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import serverudp.Fragmentador;
+import serverudp.Remontador;
 
 /**
+ * Cliente de vida longa: um socket só, endereço do servidor resolvido uma
+ * vez e vários pedidos em andamento ao mesmo tempo. Cada pedido sai como
+ * "#<id>#<comando>" e o servidor devolve a resposta com o mesmo prefixo,
+ * que a thread de recepção usa para completar o pedido certo.
+ *
+ * Sem resposta no prazo, o pedido é reenviado com o prazo dobrado até
+ * esgotar as tentativas. Só comandos "***...***" são reenviados: repetir
+ * um SEND_MESSAGE gravaria a mensagem duas vezes.
+ *
+ * Datagramas sem prefixo são push do servidor (***SUBSCRIBE***) e vão para
+ * o ouvinte, chamado na thread de recepção: não pode esperar resposta ali.
+ *
+ * Propriedades: cliente.servidor (padrão: esta máquina), cliente.porta
+ * (6789), cliente.timeout (ms, 1000) e cliente.tentativas (3).
  *
  * @author 2023122760026
  */
 public class MeuCliente {
+    private static final int TIMEOUT_MS = Integer.getInteger("cliente.timeout", 1000);
+    private static final int TENTATIVAS = Integer.getInteger("cliente.tentativas", 3);
+
+    private static MeuCliente compartilhado = null;
+
     private String nomeDNS;
     private int serverPort;
     private byte[] meuIP;
-    
+
+    private InetAddress servidor;
+    private DatagramSocket socket;
+    private final AtomicInteger proximoId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, Pendente> pendentes = new ConcurrentHashMap<>();
+    private ScheduledExecutorService relogio;
+    private volatile boolean fechado = false;
+    private volatile Consumer<String> ouvinte = null;
+
     public MeuCliente(){
         try{
             InetAddress endereco = InetAddress.getLocalHost();
-            nomeDNS = endereco.getHostName();
+            nomeDNS = System.getProperty("cliente.servidor", endereco.getHostName());
             meuIP = endereco.getAddress();
         }catch(UnknownHostException e){
             System.out.println("Host Desconhecido: " + e.getMessage());
-            
+            nomeDNS = System.getProperty("cliente.servidor", "localhost");
         }
-        serverPort = 6789;
+        serverPort = Integer.getInteger("cliente.porta", 6789);
+        abre();
     }
-    
-    
-    public String enviaMensagem(String mensagem){
-        DatagramSocket aSocket = null;
-        String resposta = "";
-        
+
+    public MeuCliente(String nomeDNSServidor){
+        nomeDNS = nomeDNSServidor;
+        meuIP = null;
+        serverPort = Integer.getInteger("cliente.porta", 6789);
+        abre();
+    }
+
+    // Instância única do processo, para as telas não abrirem um socket por ação
+    public static synchronized MeuCliente compartilhado(){
+        if(compartilhado == null){
+            compartilhado = new MeuCliente();
+        }
+        return compartilhado;
+    }
+
+    private void abre(){
         try{
-            aSocket = new DatagramSocket();
-            byte [] m = mensagem.getBytes();
-            InetAddress aHost = InetAddress.getByName(nomeDNS);
-            
-            DatagramPacket request = new DatagramPacket(m,m.length,aHost,serverPort);
-            
-            
-            aSocket.send(request);
-            
-            byte[] buffer = new byte[600];
-            
-                    
-            
-            DatagramPacket reply = new DatagramPacket(buffer,buffer.length);
-            
-            aSocket.receive(reply);
-            
-            resposta = new String(reply.getData());
-            
-            resposta = resposta + "\n";
-            
-            
-            
-            
+            servidor = InetAddress.getByName(nomeDNS);
+            socket = new DatagramSocket();
+        }catch(UnknownHostException e){
+            System.out.println("Host Desconhecido: " + e.getMessage());
+            return;
         }catch(SocketException e){
             System.out.println("Socket: " + e.getMessage());
-       } catch(IOException e){
-           System.out.println("Input Output: " + e.getMessage());
-           
-       } finally{
-           if(aSocket != null) aSocket.close();
-       }
-        
-        return resposta;
+            return;
+        }
+
+        relogio = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cliente-timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread receptor = new Thread(this::recebe, "cliente-receptor");
+        receptor.setDaemon(true);
+        receptor.start();
     }
-    
-    public MeuCliente(String nomeDNSServidor){
-        nomeDNS = "Usuário-PC";
-        meuIP = null;
-        serverPort = 6789;
+
+    public void setOuvinte(Consumer<String> ouvinte){
+        this.ouvinte = ouvinte;
+    }
+
+    // Forma antiga: espera a resposta; "" se não houver (como antes, nunca lança)
+    public String enviaMensagem(String mensagem){
+        try{
+            return enviaAsync(mensagem).join() + "\n";
+        }catch(RuntimeException e){
+            System.out.println("Sem resposta: " + e.getMessage());
+            return "";
+        }
+    }
+
+    public CompletableFuture<String> enviaAsync(String mensagem){
+        CompletableFuture<String> futuro = new CompletableFuture<>();
+        if(socket == null || fechado){
+            futuro.completeExceptionally(new IOException("cliente sem socket"));
+            return futuro;
+        }
+
+        int id = proximoId.getAndIncrement();
+        byte[] m = ("#" + id + "#" + mensagem).getBytes();
+        int tentativas = mensagem.startsWith("***") ? TENTATIVAS : 1;
+        Pendente pendente = new Pendente(futuro, Fragmentador.fragmenta(m), tentativas);
+        pendentes.put(id, pendente);
+        // Quem completa (resposta, timeout ou cancelamento) também tira da tabela
+        futuro.whenComplete((r, e) -> {
+            pendentes.remove(id);
+            ScheduledFuture<?> prazo = pendente.prazo;
+            if(prazo != null){
+                prazo.cancel(false);
+            }
+        });
+        tenta(id, pendente, TIMEOUT_MS);
+        return futuro;
+    }
+
+    private void tenta(int id, Pendente pendente, long prazoMs){
+        if(pendente.futuro.isDone()){
+            return;
+        }
+        try{
+            for (byte[] fragmento : pendente.fragmentos){
+                socket.send(new DatagramPacket(fragmento, fragmento.length, servidor, serverPort));
+            }
+        }catch(IOException e){
+            pendente.futuro.completeExceptionally(e);
+            return;
+        }
+
+        pendente.tentativas--;
+        pendente.prazo = relogio.schedule(() -> {
+            if(pendente.tentativas > 0){
+                // Backoff: cada nova tentativa espera o dobro
+                tenta(id, pendente, prazoMs * 2);
+            }else{
+                pendente.futuro.completeExceptionally(
+                        new TimeoutException("pedido " + id + " sem resposta"));
+            }
+        }, prazoMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Única thread que lê o socket, então o Remontador dispensa sincronização
+    private void recebe(){
+        Remontador remontador = new Remontador();
+        byte[] buffer = new byte[Fragmentador.TAMANHO_BUFFER];
+        while(!fechado){
+            byte[] dados;
+            try{
+                DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+                socket.receive(reply);
+                if (Fragmentador.ehFragmento(buffer, reply.getLength())){
+                    dados = remontador.recebe(buffer, reply.getLength(), reply.getSocketAddress());
+                    if(dados == null){
+                        continue;
+                    }
+                } else {
+                    dados = Arrays.copyOf(buffer, reply.getLength());
+                }
+            }catch(IOException e){
+                if(!fechado){
+                    System.out.println("Input Output: " + e.getMessage());
+                }
+                continue;
+            }
+
+            String resposta = new String(dados);
+            int fim = resposta.indexOf('#', 1);
+            if(!resposta.startsWith("#") || fim < 0){
+                // Sem id: push de assinatura; resposta de servidor antigo não tem a quem ir
+                Consumer<String> o = ouvinte;
+                if(o != null){
+                    try{
+                        o.accept(resposta);
+                    }catch(RuntimeException e){
+                        System.out.println("Push: " + e.getMessage());
+                    }
+                }
+                continue;
+            }
+            Pendente pendente;
+            try{
+                pendente = pendentes.get(Integer.parseInt(resposta.substring(1, fim)));
+            }catch(NumberFormatException e){
+                continue;
+            }
+            // Repetida por causa de um reenvio: o primeiro já completou, o resto é ignorado
+            if(pendente != null){
+                pendente.futuro.complete(resposta.substring(fim + 1));
+            }
+        }
     }
-    
+
+    public void fecha(){
+        fechado = true;
+        if(socket != null) socket.close();
+        if(relogio != null) relogio.shutdownNow();
+        for (Pendente pendente : pendentes.values()){
+            pendente.futuro.completeExceptionally(new IOException("cliente fechado"));
+        }
+    }
+
     public String getNomeDNS(){
         return nomeDNS;
     }
-    
+
     public int getServerPort(){
         return serverPort;
     }
-    
+
     public String getMeuIP(){
         String s = new String (meuIP);
         return s;
     }
+
+    private static class Pendente {
+        final CompletableFuture<String> futuro;
+        final List<byte[]> fragmentos;
+        volatile int tentativas;
+        volatile ScheduledFuture<?> prazo;
+
+        Pendente(CompletableFuture<String> futuro, List<byte[]> fragmentos, int tentativas){
+            this.futuro = futuro;
+            this.fragmentos = fragmentos;
+            this.tentativas = tentativas;
+        }
+    }
 }
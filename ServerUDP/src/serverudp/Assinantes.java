@@ -0,0 +1,151 @@
+package serverudp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Endereços que pediram ***SUBSCRIBE*** e recebem as novidades sem
+ * perguntar. Cada assinatura vale LEASE_MS e é renovada a cada novo
+ * SUBSCRIBE; quem para de renovar sai na próxima publicação.
+ *
+ * O envio sai sem o prefixo "#id#", e é assim que o cliente distingue
+ * um push de uma resposta.
+ *
+ * A origem de um datagrama pode ser forjada: sem cuidado, qualquer um
+ * inscreveria um terceiro e faria o servidor despejar pushes nele. Por isso
+ * o SUBSCRIBE precisa trazer uma ficha (HMAC do endereço e da janela de
+ * tempo, com chave sorteada na partida) que só chega a quem de fato recebe
+ * no endereço. Não há estado por ficha: basta recalcular e comparar. Cada
+ * IP também tem um limite próprio de assinaturas.
+ */
+public class Assinantes {
+    public static final long LEASE_MS = 15000;
+    // Cada assinante custa um datagrama por mensagem; acima disso, só polling
+    private static final int MAX_ASSINANTES = 1024;
+    // Uma máquina não ocupa a tabela sozinha (NAT com vários clientes cabe);
+    // -Dserverudp.assinantes.porIp sobe o limite para testes de carga locais
+    private static final int MAX_POR_IP = Integer.getInteger("serverudp.assinantes.porIp", 16);
+    // A ficha vale na janela em que foi emitida e na seguinte
+    private static final long JANELA_FICHA_MS = 60000;
+    private static final int BYTES_FICHA = 16;
+
+    private final DatagramSocket socket;
+    // endereço -> validade (System.currentTimeMillis)
+    private final ConcurrentHashMap<InetSocketAddress, Long> validade = new ConcurrentHashMap<>();
+    // IP -> assinaturas na tabela; só muda sob o lock do objeto
+    private final ConcurrentHashMap<InetAddress, Integer> porIp = new ConcurrentHashMap<>();
+    private final SecretKeySpec chave;
+
+    public Assinantes(DatagramSocket socket){
+        this.socket = socket;
+        byte[] segredo = new byte[32];
+        new SecureRandom().nextBytes(segredo);
+        this.chave = new SecretKeySpec(segredo, "HmacSHA256");
+    }
+
+    /**
+     * Ficha para o endereço na janela atual, devolvida em ***DESAFIO***.
+     */
+    public String ficha(InetSocketAddress endereco){
+        return ficha(endereco, System.currentTimeMillis() / JANELA_FICHA_MS);
+    }
+
+    /**
+     * Se a ficha foi emitida para este endereço na janela atual ou na anterior.
+     */
+    public boolean confere(InetSocketAddress endereco, String ficha){
+        if(ficha == null || ficha.isEmpty()){
+            return false;
+        }
+        byte[] recebida = ficha.getBytes();
+        long janela = System.currentTimeMillis() / JANELA_FICHA_MS;
+        // Compara em tempo constante: a diferença não pode ir revelando a ficha
+        return MessageDigest.isEqual(recebida, ficha(endereco, janela).getBytes())
+                || MessageDigest.isEqual(recebida, ficha(endereco, janela - 1).getBytes());
+    }
+
+    private String ficha(InetSocketAddress endereco, long janela){
+        byte[] ip = endereco.getAddress().getAddress();
+        ByteBuffer dados = ByteBuffer.allocate(ip.length + 12);
+        dados.put(ip).putInt(endereco.getPort()).putLong(janela);
+        try{
+            // Mac não é thread-safe; o SUBSCRIBE é raro o bastante para criar um
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(chave);
+            byte[] resumo = Arrays.copyOf(mac.doFinal(dados.array()), BYTES_FICHA);
+            // Base64 de URL: sem "/", que separa os campos do comando
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(resumo);
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException("HmacSHA256 indisponível", e);
+        }
+    }
+
+    // false se a tabela (ou a cota do IP) está cheia e o endereço ainda não estava nela
+    public boolean assina(InetSocketAddress endereco){
+        long ate = System.currentTimeMillis() + LEASE_MS;
+        if(validade.replace(endereco, ate) != null){
+            return true;
+        }
+        synchronized(this){
+            if(validade.size() >= MAX_ASSINANTES
+                    || porIp.getOrDefault(endereco.getAddress(), 0) >= MAX_POR_IP){
+                return false;
+            }
+            if(validade.putIfAbsent(endereco, ate) == null){
+                porIp.merge(endereco.getAddress(), 1, Integer::sum);
+            }
+        }
+        return true;
+    }
+
+    public void cancela(InetSocketAddress endereco){
+        if(validade.remove(endereco) != null){
+            saiu(endereco);
+        }
+    }
+
+    private synchronized void saiu(InetSocketAddress endereco){
+        porIp.computeIfPresent(endereco.getAddress(), (ip, n) -> n > 1 ? n - 1 : null);
+    }
+
+    public int tamanho(){
+        return validade.size();
+    }
+
+    public void publica(String texto){
+        if(validade.isEmpty()){
+            return;
+        }
+        byte[] dados = texto.getBytes();
+        long agora = System.currentTimeMillis();
+        Iterator<Map.Entry<InetSocketAddress, Long>> it = validade.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<InetSocketAddress, Long> assinante = it.next();
+            if(assinante.getValue() < agora){
+                // Renovada no meio da varredura: fica
+                if(validade.remove(assinante.getKey(), assinante.getValue())){
+                    saiu(assinante.getKey());
+                }
+                continue;
+            }
+            try{
+                ServerUDP.envia(socket, dados, assinante.getKey().getAddress(), assinante.getKey().getPort());
+            }catch(IOException e){
+                LogAssincrono.get().erro("SERVIDOR - Push: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -4,31 +4,49 @@
  */
 package serverudp;
 
-import cliente.*;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
  * @author 2023122760026
  */
 public class Atualizador extends Thread{
-    private static ArrayList<String> usuarios = null;
+    // Sem REGISTER/ONLINE por esse tempo, o usuário deixa de aparecer
+    public static final long TIMEOUT_MS = 15000;
+    // Varre algumas vezes por timeout, para ninguém ficar muito além do prazo
+    private static final long INTERVALO_MS = TIMEOUT_MS / 3;
     
-    public Atualizador(ArrayList<String> usuarios){
+    // usuário -> última vez visto (System.currentTimeMillis)
+    private final ConcurrentHashMap<String, Long> usuarios;
+    // Chamado quando a varredura tira alguém (ex.: avisar assinantes)
+    private final Runnable aoExpirar;
+    
+    public Atualizador(ConcurrentHashMap<String, Long> usuarios, Runnable aoExpirar){
         this.usuarios = usuarios;
+        this.aoExpirar = aoExpirar;
+        setName("atualizador-presenca");
+        setDaemon(true);
+    }
+    
+    public static boolean online(long vistoEm, long agora){
+        return agora - vistoEm <= TIMEOUT_MS;
     }
     
     @Override
     public void run(){
-        
-        
         while(true){
-            
-            
             try{
-                Thread.sleep(5000);
+                Thread.sleep(INTERVALO_MS);
             }catch(InterruptedException ex){
-                System.out.println(ex.getMessage());
+                LogAssincrono.get().erro("{}", ex.getMessage());
+                return;
+            }
+            
+            // removeIf no mapa concorrente não bloqueia quem registra ao mesmo tempo;
+            // um ONLINE que chegue durante a varredura só regrava a entrada
+            long agora = System.currentTimeMillis();
+            if(usuarios.values().removeIf(vistoEm -> !online(vistoEm, agora))){
+                aoExpirar.run();
             }
         }
     }
@@ -4,30 +4,84 @@
  */
 package serverudp;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  *
  * @author 2023122760026
  */
 public class BaseDeDados {
-    private ArrayList lista = null;
+    // Retrato imutável do que já foi publicado: as leituras pegam o retrato
+    // atual sem trava e só olham as posições abaixo de total
+    private static final class Retrato {
+        final String[] entradas;
+        final int total;
+        
+        Retrato(String[] entradas, int total){
+            this.entradas = entradas;
+            this.total = total;
+        }
+    }
+    
+    // Cada entrada já guardada numerada ("[n] texto\n"), na posição n - 1,
+    // para as leituras só concatenarem o trecho pedido
+    private volatile Retrato atual = new Retrato(new String[64], 0);
     
     public BaseDeDados(){
-        lista = new ArrayList();
     }
     
-    public void insere(String msg){
-        lista.add(msg.trim());
+    // Escritas se revezam na trava; a entrada é gravada antes de o novo total ser
+    // publicado, e o vetor só é copiado quando enche (cópia na escrita, amortizada)
+    // Devolve o número da entrada gravada
+    public synchronized int insere(String msg){
+        Retrato r = atual;
+        String[] entradas = r.entradas;
+        if(r.total == entradas.length){
+            entradas = Arrays.copyOf(entradas, entradas.length * 2);
+        }
+        entradas[r.total] = "[" + (r.total + 1) + "] " + msg.trim() + "\n";
+        atual = new Retrato(entradas, r.total + 1);
+        return r.total + 1;
+    }
+    
+    public int tamanho(){
+        return atual.total;
     }
     
+    // Histórico completo, no formato de sempre
     public String le(){
-        String s = "\n";
-        int fim = lista.size();
+        return "\n" + leDesde(atual, 0);
+    }
+    
+    // Só as entradas depois de ultimo (numeração a partir de 1)
+    public String leDesde(int ultimo){
+        return leDesde(atual, ultimo);
+    }
+    
+    private static String leDesde(Retrato r, int ultimo){
+        StringBuilder s = new StringBuilder();
         
-        for (int pos = 0; pos < fim; pos++){
-            s = s + "[" + (pos + 1) + "] " + (String)lista.get(pos) + "\n";
+        for (int pos = Math.max(0, ultimo); pos < r.total; pos++){
+            s.append(r.entradas[pos]);
         }
-        return s;
+        return s.toString();
+    }
+    
+    // Resposta incremental: "***DELTA***/<total>" seguido das entradas novas.
+    // Se o cliente diz ter mais do que existe (servidor reiniciado), manda tudo
+    // e o total menor avisa o cliente para recomeçar.
+    public String delta(int ultimo){
+        // Total e entradas saem do mesmo retrato, então combinam entre si
+        Retrato r = atual;
+        int desde = ultimo > r.total ? 0 : ultimo;
+        return "***DELTA***/" + r.total + "\n" + leDesde(r, desde);
+    }
+    
+    // Push para assinantes: "***PUSH***/<desde>/<total>" e as entradas entre os dois.
+    // Com inserções simultâneas pode trazer mais de uma; o cliente aplica o intervalo
+    // e, se o desde não bate com o que tem, pede o delta.
+    public String novidades(int desde){
+        Retrato r = atual;
+        return "***PUSH***/" + desde + "/" + r.total + "\n" + leDesde(r, desde);
     }
 }
@@ -0,0 +1,73 @@
+package serverudp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Divide mensagens maiores que um datagrama em fragmentos com cabeçalho
+ * próprio, remontados do outro lado pelo {@link Remontador}:
+ *
+ *   magic(1) id(4) índice(2) total(2) dados...
+ *
+ * Os comandos texto começam com '*' ou letra, então o byte mágico não colide
+ * com eles e fragmentos e mensagens inteiras convivem na mesma porta.
+ */
+public final class Fragmentador {
+    public static final byte MAGIC = (byte) 0xC9;
+    public static final int CABECALHO = 9;
+    public static final int MAX_FRAGMENTOS = 0xFFFF;
+    // Dados por fragmento: cabe num quadro Ethernet com folga para IP/UDP
+    public static final int TAMANHO_FRAGMENTO = 1400;
+    // Buffer de recepção: um fragmento inteiro; mensagens maiores chegam fragmentadas
+    public static final int TAMANHO_BUFFER = CABECALHO + TAMANHO_FRAGMENTO;
+    
+    private static final AtomicInteger proximoId = new AtomicInteger(1);
+    
+    private Fragmentador(){
+    }
+    
+    public static boolean ehFragmento(byte[] dados, int tamanho){
+        return tamanho >= CABECALHO && dados[0] == MAGIC;
+    }
+    
+    // Mensagem que cabe num fragmento volta sozinha e sem cabeçalho
+    public static List<byte[]> fragmenta(byte[] mensagem){
+        List<byte[]> fragmentos = new ArrayList<>();
+        if (mensagem.length <= TAMANHO_FRAGMENTO){
+            fragmentos.add(mensagem);
+            return fragmentos;
+        }
+        
+        int total = (mensagem.length + TAMANHO_FRAGMENTO - 1) / TAMANHO_FRAGMENTO;
+        if (total > MAX_FRAGMENTOS){
+            throw new IllegalArgumentException("Mensagem grande demais: " + mensagem.length + " bytes");
+        }
+        int id = proximoId.getAndIncrement();
+        for (int i = 0; i < total; i++){
+            int inicio = i * TAMANHO_FRAGMENTO;
+            int tamanho = Math.min(TAMANHO_FRAGMENTO, mensagem.length - inicio);
+            fragmentos.add(ByteBuffer.allocate(CABECALHO + tamanho)
+                    .put(MAGIC)
+                    .putInt(id)
+                    .putShort((short) i)
+                    .putShort((short) total)
+                    .put(mensagem, inicio, tamanho)
+                    .array());
+        }
+        return fragmentos;
+    }
+    
+    static int id(byte[] dados){
+        return ByteBuffer.wrap(dados, 1, 4).getInt();
+    }
+    
+    static int indice(byte[] dados){
+        return ((dados[5] & 0xFF) << 8) | (dados[6] & 0xFF);
+    }
+    
+    static int total(byte[] dados){
+        return ((dados[7] & 0xFF) << 8) | (dados[8] & 0xFF);
+    }
+}
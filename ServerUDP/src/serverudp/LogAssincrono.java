@@ -0,0 +1,220 @@
+package serverudp;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log assíncrono do servidor: quem registra só preenche um registro de
+ * tamanho fixo (nível, instante, modelo e até dois argumentos) num anel
+ * pré-alocado; uma thread de fundo monta o texto e escreve em lotes. Com o
+ * anel cheio o registro é descartado e contado em getDescartados().
+ *
+ * Os modelos usam "{}" no lugar de cada argumento.
+ * -Dserverudp.log.nivel=DEBUG|INFO|AVISO|ERRO|DESLIGADO (padrão INFO)
+ * -Dserverudp.log.buffer=N registros (arredondado para potência de dois)
+ */
+public class LogAssincrono {
+    public enum Nivel { DEBUG, INFO, AVISO, ERRO, DESLIGADO }
+
+    private static final int LOTE = 512;
+    private static final long ESPERA_NS = 1_000_000;
+    private static final DateTimeFormatter HORA =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static LogAssincrono compartilhado;
+
+    private final Nivel minimo;
+    private final Registro[] anel;
+    private final int mascara;
+    // Próxima posição a reservar (produtores), a consumir e já escrita (thread de fundo)
+    private final AtomicLong reservado = new AtomicLong();
+    private volatile long consumido;
+    private volatile long escrito;
+    private final LongAdder descartados = new LongAdder();
+    private final Thread escritor;
+
+    // O consumidor só lê depois de ver sequencia igual à posição esperada
+    private static class Registro {
+        volatile long sequencia = -1;
+        long instante;
+        Nivel nivel;
+        String modelo;
+        Object arg0;
+        Object arg1;
+        long omitidos;
+    }
+
+    /**
+     * Amostragem de um evento frequente: só 1 a cada "cada" chamadas vira
+     * registro, que informa quantas foram omitidas.
+     */
+    public class Amostrado {
+        private final Nivel nivel;
+        private final int cada;
+        private final AtomicLong chamadas = new AtomicLong();
+
+        private Amostrado(Nivel nivel, int cada){
+            this.nivel = nivel;
+            this.cada = Math.max(1, cada);
+        }
+
+        public void registra(String modelo, Object arg0, Object arg1){
+            if (!ativo(nivel)){
+                return;
+            }
+            long chamada = chamadas.getAndIncrement();
+            if (chamada % cada == 0){
+                grava(nivel, modelo, arg0, arg1, chamada == 0 ? 0 : cada - 1);
+            }
+        }
+    }
+
+    public LogAssincrono(Nivel minimo, int capacidade){
+        this.minimo = minimo;
+        int tamanho = Integer.highestOneBit(Math.max(2, capacidade - 1) << 1);
+        anel = new Registro[tamanho];
+        for (int i = 0; i < tamanho; i++){
+            anel[i] = new Registro();
+        }
+        mascara = tamanho - 1;
+        escritor = new Thread(this::escoa, "serverudp-log");
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+
+    // Instância do processo; o que estiver no anel no desligamento ainda é escrito
+    public static synchronized LogAssincrono get(){
+        if (compartilhado == null){
+            Nivel nivel = Nivel.valueOf(System.getProperty("serverudp.log.nivel", "INFO").toUpperCase());
+            compartilhado = new LogAssincrono(nivel, Integer.getInteger("serverudp.log.buffer", 8192));
+            LogAssincrono log = compartilhado;
+            Runtime.getRuntime().addShutdownHook(new Thread(log::esvazia, "serverudp-log-esvazia"));
+        }
+        return compartilhado;
+    }
+
+    public boolean ativo(Nivel nivel){
+        return nivel.compareTo(minimo) >= 0 && nivel != Nivel.DESLIGADO;
+    }
+
+    public Amostrado amostrado(Nivel nivel, int cada){
+        return new Amostrado(nivel, cada);
+    }
+
+    public long getDescartados(){
+        return descartados.sum();
+    }
+
+    public void debug(String modelo, Object arg0){
+        registra(Nivel.DEBUG, modelo, arg0, null);
+    }
+
+    public void info(String modelo){
+        registra(Nivel.INFO, modelo, null, null);
+    }
+
+    public void info(String modelo, Object arg0){
+        registra(Nivel.INFO, modelo, arg0, null);
+    }
+
+    public void aviso(String modelo, Object arg0){
+        registra(Nivel.AVISO, modelo, arg0, null);
+    }
+
+    public void erro(String modelo, Object arg0){
+        registra(Nivel.ERRO, modelo, arg0, null);
+    }
+
+    public void registra(Nivel nivel, String modelo, Object arg0, Object arg1){
+        if (ativo(nivel)){
+            grava(nivel, modelo, arg0, arg1, 0);
+        }
+    }
+
+    private void grava(Nivel nivel, String modelo, Object arg0, Object arg1, long omitidos){
+        long seq;
+        do{
+            seq = reservado.get();
+            if (seq - consumido >= anel.length){
+                descartados.increment();
+                return;
+            }
+        }while(!reservado.compareAndSet(seq, seq + 1));
+
+        Registro r = anel[(int) seq & mascara];
+        r.instante = System.currentTimeMillis();
+        r.nivel = nivel;
+        r.modelo = modelo;
+        r.arg0 = arg0;
+        r.arg1 = arg1;
+        r.omitidos = omitidos;
+        r.sequencia = seq;
+    }
+
+    private void escoa(){
+        StringBuilder saida = new StringBuilder();
+        StringBuilder erros = new StringBuilder();
+        while (true){
+            long proximo = consumido;
+            int n = 0;
+            Registro r;
+            while (n < LOTE && (r = anel[(int) proximo & mascara]).sequencia == proximo){
+                formata(r, r.nivel.compareTo(Nivel.AVISO) >= 0 ? erros : saida);
+                r.arg0 = r.arg1 = null;
+                r.modelo = null;
+                proximo++;
+                n++;
+            }
+            if (n == 0){
+                LockSupport.parkNanos(ESPERA_NS);
+                continue;
+            }
+            consumido = proximo;
+            escreve(System.out, saida);
+            escreve(System.err, erros);
+            escrito = proximo;
+        }
+    }
+
+    private static void formata(Registro r, StringBuilder texto){
+        HORA.formatTo(Instant.ofEpochMilli(r.instante), texto);
+        texto.append(' ').append(r.nivel).append(' ');
+        Object[] args = { r.arg0, r.arg1 };
+        int usados = 0;
+        int de = 0;
+        int em;
+        while (usados < args.length && (em = r.modelo.indexOf("{}", de)) >= 0){
+            texto.append(r.modelo, de, em).append(args[usados++]);
+            de = em + 2;
+        }
+        texto.append(r.modelo, de, r.modelo.length());
+        if (r.omitidos > 0){
+            texto.append(" (+").append(r.omitidos).append(" omitidos)");
+        }
+        texto.append(System.lineSeparator());
+    }
+
+    private static void escreve(PrintStream destino, StringBuilder texto){
+        if (texto.length() == 0){
+            return;
+        }
+        destino.print(texto);
+        destino.flush();
+        texto.setLength(0);
+    }
+
+    // Espera a thread de fundo escrever o que já foi registrado (até 2 s)
+    public void esvazia(){
+        long alvo = reservado.get();
+        long limite = System.nanoTime() + 2_000_000_000L;
+        while (escrito < alvo && System.nanoTime() < limite){
+            LockSupport.unpark(escritor);
+            LockSupport.parkNanos(ESPERA_NS);
+        }
+    }
+}
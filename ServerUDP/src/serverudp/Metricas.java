@@ -0,0 +1,225 @@
+package serverudp;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Métricas do ServerUDP: contadores (LongAdder), gauges lidos só na consulta
+ * e um histograma de tempo de tratamento por comando. Os contadores do
+ * caminho quente ficam em campos; os mapas só são percorridos na consulta
+ * (***GET_METRICS*** e JMX, em serverudp:type=Metricas).
+ *
+ * -Dserverudp.metricas=false desliga (o servidor fica com null). O
+ * ***GET_METRICS*** só é respondido para a própria máquina, a não ser com
+ * -Dserverudp.metricas.remoto=true.
+ */
+public class Metricas {
+    public final LongAdder pacotesRecebidos = new LongAdder();
+    public final LongAdder bytesRecebidos = new LongAdder();
+    public final LongAdder respostasEnviadas = new LongAdder();
+    public final LongAdder errosComando = new LongAdder();
+
+    private final boolean remoto = Boolean.getBoolean("serverudp.metricas.remoto");
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    // Só leitura depois do construtor
+    private final Map<String, Histograma> porComando = new HashMap<>();
+    // Qualquer outro comando cai no default do servidor, que grava a mensagem
+    private final Histograma envioMensagem = new Histograma();
+
+    public Metricas(){
+        for (String comando : new String[] { "***ATUALIZE***", "***REGISTER***", "***GET_USERS***",
+                "***ONLINE***", "***SUBSCRIBE***", "***UNSUBSCRIBE***", "***GET_METRICS***" }){
+            porComando.put(comando, new Histograma());
+        }
+    }
+
+    public static Metricas dasPropriedades(){
+        return Boolean.parseBoolean(System.getProperty("serverudp.metricas", "true")) ? new Metricas() : null;
+    }
+
+    /**
+     * Se a origem pode receber o ***GET_METRICS***.
+     */
+    public boolean permite(InetAddress endereco){
+        return remoto || endereco.isLoopbackAddress();
+    }
+
+    public void gauge(String nome, LongSupplier valor){
+        gauges.put(nome, valor);
+    }
+
+    public void comando(String comando, long nanos){
+        porComando.getOrDefault(comando, envioMensagem).registra(nanos);
+    }
+
+    // Valores do momento, em ordem de nome; comandos ainda sem uso ficam de fora
+    public Map<String, Long> retrato(){
+        Map<String, Long> valores = new TreeMap<>();
+        valores.put("pacotes.recebidos", pacotesRecebidos.sum());
+        valores.put("bytes.recebidos", bytesRecebidos.sum());
+        valores.put("respostas.enviadas", respostasEnviadas.sum());
+        valores.put("erros.comando", errosComando.sum());
+        gauges.forEach((nome, gauge) -> valores.put(nome, gauge.getAsLong()));
+        porComando.forEach((comando, h) -> adiciona(valores, comando.replace("*", ""), h));
+        adiciona(valores, "SEND_MESSAGE", envioMensagem);
+        return valores;
+    }
+
+    private static void adiciona(Map<String, Long> valores, String comando, Histograma h){
+        if (h.total() == 0){
+            return;
+        }
+        String nome = "comando." + comando + ".ns";
+        valores.put(nome + ".count", h.total());
+        valores.put(nome + ".p50", h.percentil(50));
+        valores.put(nome + ".p99", h.percentil(99));
+        valores.put(nome + ".p999", h.percentil(99.9));
+        valores.put(nome + ".max", h.percentil(100));
+    }
+
+    // Resposta do ***GET_METRICS***: "METRICAS" e uma linha "<nome> <valor>" por métrica
+    public String texto(){
+        StringBuilder s = new StringBuilder("METRICAS\n");
+        retrato().forEach((nome, valor) -> s.append(nome).append(' ').append(valor).append('\n'));
+        return s.toString();
+    }
+
+    public void registraJmx(){
+        try{
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Visao(), new ObjectName("serverudp:type=Metricas"));
+        }catch(Exception e){
+            LogAssincrono.get().aviso("SERVIDOR - Métricas fora do JMX: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Histograma no esquema do HdrHistogram: valores abaixo de 64 com balde
+     * próprio e, acima, 32 baldes por potência de dois (erro relativo abaixo
+     * de ~3%, memória fixa). Contadores atômicos, sem trava.
+     */
+    static class Histograma {
+        private static final int SUB = 64;
+        private static final int METADE = SUB / 2;
+        private static final int MAX_DESLOCAMENTO = 40;
+
+        private final AtomicLongArray baldes = new AtomicLongArray(SUB + MAX_DESLOCAMENTO * METADE);
+        private final LongAdder total = new LongAdder();
+
+        void registra(long valor){
+            baldes.incrementAndGet(indice(Math.max(0, valor)));
+            total.increment();
+        }
+
+        long total(){
+            return total.sum();
+        }
+
+        // Maior valor do balde em que cai o percentil (0 a 100)
+        long percentil(double p){
+            long n = total.sum();
+            if (n == 0){
+                return 0;
+            }
+            long posicao = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+            long vistos = 0;
+            int ultimo = 0;
+            for (int i = 0; i < baldes.length(); i++){
+                long c = baldes.get(i);
+                if (c == 0){
+                    continue;
+                }
+                ultimo = i;
+                vistos += c;
+                if (vistos >= posicao){
+                    return maiorValor(i);
+                }
+            }
+            return maiorValor(ultimo);
+        }
+
+        static int indice(long valor){
+            if (valor < SUB){
+                return (int) valor;
+            }
+            int deslocamento = Math.min(63 - Long.numberOfLeadingZeros(valor) - 5, MAX_DESLOCAMENTO);
+            long sub = Math.min(valor >>> deslocamento, SUB - 1);
+            return SUB + (deslocamento - 1) * METADE + (int) (sub - METADE);
+        }
+
+        static long maiorValor(int indice){
+            if (indice < SUB){
+                return indice;
+            }
+            int deslocamento = (indice - SUB) / METADE + 1;
+            long sub = (indice - SUB) % METADE + METADE;
+            return ((sub + 1) << deslocamento) - 1;
+        }
+    }
+
+    // MBean dinâmico: um atributo long somente leitura por métrica
+    private class Visao implements DynamicMBean {
+        @Override
+        public Object getAttribute(String atributo) throws AttributeNotFoundException {
+            Long valor = retrato().get(atributo);
+            if (valor == null){
+                throw new AttributeNotFoundException(atributo);
+            }
+            return valor;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] atributos){
+            Map<String, Long> valores = retrato();
+            AttributeList lista = new AttributeList();
+            for (String atributo : atributos){
+                Long valor = valores.get(atributo);
+                if (valor != null){
+                    lista.add(new Attribute(atributo, valor));
+                }
+            }
+            return lista;
+        }
+
+        @Override
+        public void setAttribute(Attribute atributo) throws AttributeNotFoundException {
+            // Métricas são somente leitura
+            throw new AttributeNotFoundException(atributo.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList atributos){
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String acao, Object[] parametros, String[] assinatura) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(acao));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo(){
+            Map<String, Long> valores = retrato();
+            MBeanAttributeInfo[] atributos = new MBeanAttributeInfo[valores.size()];
+            int i = 0;
+            for (String nome : valores.keySet()){
+                atributos[i++] = new MBeanAttributeInfo(nome, "long", nome, true, false, false);
+            }
+            return new MBeanInfo(Metricas.class.getName(), "Métricas do ServerUDP", atributos, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package serverudp;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remonta mensagens fragmentadas pelo {@link Fragmentador}. A tabela é
+ * limitada em mensagens pendentes, bytes retidos e tamanho por mensagem, e
+ * mensagens incompletas expiram após o timeout. Sem espaço, o fragmento que
+ * abriria uma mensagem nova é descartado.
+ *
+ * Não é thread-safe: cada laço de recepção usa o seu.
+ */
+public class Remontador {
+    private static final int MAX_PENDENTES = 256;
+    private static final long MAX_BYTES = 8L * 1024 * 1024;
+    private static final int MAX_MENSAGEM = 1024 * 1024;
+    private static final long TIMEOUT_MS = 5000;
+    
+    private final Map<String, Parcial> pendentes = new HashMap<>();
+    private long bytesRetidos = 0;
+    private long descartados = 0;
+    
+    // Retorna a mensagem completa quando chega o último fragmento; senão null
+    public byte[] recebe(byte[] dados, int tamanho, SocketAddress origem){
+        long agora = System.currentTimeMillis();
+        limpaExpirados(agora);
+        
+        int indice = Fragmentador.indice(dados);
+        int total = Fragmentador.total(dados);
+        int tamanhoDados = tamanho - Fragmentador.CABECALHO;
+        if (total == 0 || indice >= total || (long) total * Fragmentador.TAMANHO_FRAGMENTO > MAX_MENSAGEM){
+            descartados++;
+            return null;
+        }
+        
+        String chave = origem + "#" + Fragmentador.id(dados);
+        Parcial parcial = pendentes.get(chave);
+        if (parcial == null){
+            if (pendentes.size() >= MAX_PENDENTES){
+                descartados++;
+                return null;
+            }
+            parcial = new Parcial(total, agora);
+            pendentes.put(chave, parcial);
+        }
+        if (parcial.partes.length != total || parcial.partes[indice] != null){
+            return null;
+        }
+        if (bytesRetidos + tamanhoDados > MAX_BYTES){
+            descartados++;
+            descarta(chave, parcial);
+            return null;
+        }
+        
+        byte[] parte = new byte[tamanhoDados];
+        System.arraycopy(dados, Fragmentador.CABECALHO, parte, 0, tamanhoDados);
+        parcial.partes[indice] = parte;
+        parcial.bytes += tamanhoDados;
+        parcial.faltando--;
+        bytesRetidos += tamanhoDados;
+        if (parcial.faltando > 0){
+            return null;
+        }
+        
+        byte[] mensagem = new byte[parcial.bytes];
+        int posicao = 0;
+        for (byte[] pedaco : parcial.partes){
+            System.arraycopy(pedaco, 0, mensagem, posicao, pedaco.length);
+            posicao += pedaco.length;
+        }
+        descarta(chave, parcial);
+        return mensagem;
+    }
+    
+    public long getDescartados(){
+        return descartados;
+    }
+    
+    private void descarta(String chave, Parcial parcial){
+        bytesRetidos -= parcial.bytes;
+        pendentes.remove(chave);
+    }
+    
+    private void limpaExpirados(long agora){
+        Iterator<Parcial> it = pendentes.values().iterator();
+        while (it.hasNext()){
+            Parcial parcial = it.next();
+            if (agora - parcial.criadaEm > TIMEOUT_MS){
+                bytesRetidos -= parcial.bytes;
+                descartados++;
+                it.remove();
+            }
+        }
+    }
+    
+    private static class Parcial {
+        final byte[][] partes;
+        final long criadaEm;
+        int faltando;
+        int bytes = 0;
+        
+        Parcial(int total, long criadaEm){
+            this.partes = new byte[total][];
+            this.faltando = total;
+            this.criadaEm = criadaEm;
+        }
+    }
+}
@@ -7,10 +7,16 @@ package serverudp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.time.LocalTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -18,7 +24,17 @@ import java.util.List;
  */
 public class ServerUDP {
     private static BaseDeDados bd = null;
-    private static ArrayList<String> usuarios = null;
+    // usuário -> última vez visto; o Atualizador remove quem expirou
+    private static ConcurrentHashMap<String, Long> usuarios = null;
+    // Quem pediu ***SUBSCRIBE*** recebe mensagens e presença sem precisar perguntar
+    private static Assinantes assinantes = null;
+    // null com -Dserverudp.metricas=false
+    private static Metricas metricas = null;
+    // Console fora da thread do pacote; o eco de cada pedido só sai em DEBUG
+    private static final LogAssincrono log = LogAssincrono.get();
+    // -Dserverudp.log.amostra=N escreve 1 a cada N mensagens inseridas
+    private static final LogAssincrono.Amostrado inseridos =
+            log.amostrado(LogAssincrono.Nivel.INFO, Integer.getInteger("serverudp.log.amostra", 1));
                  
     /**
      * @param args the command line arguments
@@ -34,84 +50,245 @@ public class ServerUDP {
         }
         return contador;
     }
+    // Respostas maiores que um fragmento seguem em vários datagramas
+    public static void envia(DatagramSocket socket, byte[] dados, InetAddress endereco, int porta) throws IOException {
+        for (byte[] fragmento : Fragmentador.fragmenta(dados)) {
+            socket.send(new DatagramPacket(fragmento, fragmento.length, endereco, porta));
+            if(metricas != null) metricas.respostasEnviadas.increment();
+        }
+    }
+    
+    // Índice numérico que o cliente já tem, ou -1 (formato antigo: histórico inteiro)
+    public static int ultimoIndice(String texto) {
+        try {
+            return Integer.parseInt(texto.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    // "USERS/a/b/...": só quem foi visto dentro do prazo
+    public static String listaUsuarios(){
+        StringBuilder users = new StringBuilder("USERS");
+        long agora = System.currentTimeMillis();
+        for(Map.Entry<String, Long> user : usuarios.entrySet()){
+            // Filtra também aqui: a varredura só passa de tempos em tempos
+            if(Atualizador.online(user.getValue(), agora)){
+                users.append('/').append(user.getKey());
+            }
+        }
+        return users.toString();
+    }
+    
+    // Marca o usuário como visto; se ele não constava, avisa os assinantes só
+    // da entrada dele (***ENTROU***/<usuário>), sem remontar a lista inteira.
+    // Saídas continuam indo como lista completa, pelo Atualizador
+    public static void visto(String usuario){
+        Long antes = usuarios.put(usuario, System.currentTimeMillis());
+        if(antes == null || !Atualizador.online(antes, System.currentTimeMillis())){
+            assinantes.publica("***ENTROU***/" + usuario);
+        }
+    }
+    
+    // Um datagrama já remontado: interpreta o comando e responde. Comando
+    // malformado (ex.: sem "/") só é contado e ignorado, sem derrubar o laço
+    public static void trata(DatagramSocket aSocket, byte[] recebido, int tamanho, InetAddress endereco, int porta) throws IOException {
+        try{
+            executa(aSocket, recebido, tamanho, endereco, porta);
+        }catch(RuntimeException e){
+            if(metricas != null) metricas.errosComando.increment();
+            log.aviso("SERVIDOR - Comando inválido: {}", e);
+        }
+    }
+    
+    private static void executa(DatagramSocket aSocket, byte[] recebido, int tamanho, InetAddress endereco, int porta) throws IOException {
+        long inicio = System.nanoTime();
+        String mensagem = new String(recebido, 0, tamanho).trim();
+        
+        // "#<id>#<comando>": o cliente tem vários pedidos em andamento e
+        // reconhece a resposta pelo mesmo prefixo; sem ele, formato antigo
+        String prefixo = "";
+        if(mensagem.startsWith("#")){
+            int fim = mensagem.indexOf('#', 1);
+            if(fim > 0){
+                prefixo = mensagem.substring(0, fim + 1);
+                mensagem = mensagem.substring(fim + 1);
+            }
+        }
+        
+        log.debug("{}", mensagem);
+        
+        String[] parts = mensagem.split("/");
+        String command = parts[0];
+        String data = parts[1];
+        // null = histórico completo (clientes antigos)
+        String resposta = null;
+        
+        switch (command) {
+            case "***ATUALIZE***":
+                // ***ATUALIZE***/<último índice> pede só o que falta
+                int ultimo = ultimoIndice(data);
+                if(ultimo >= 0){
+                    resposta = bd.delta(ultimo);
+                }
+                break;
+            case "***SUBSCRIBE***":
+                // ***SUBSCRIBE***/<último índice>/<usuário>/<ficha>: assina (ou renova)
+                // por Assinantes.LEASE_MS e recebe o delta do que perdeu; o
+                // usuário, se não vier vazio, conta como ***ONLINE***. Sem ficha
+                // válida a resposta é só ***DESAFIO***/<ficha>, que o cliente
+                // repete no SUBSCRIBE: quem forjou a origem nunca a vê
+                int desde = ultimoIndice(data);
+                InetSocketAddress origem = new InetSocketAddress(endereco, porta);
+                if(desde >= 0 && !assinantes.confere(origem, parts.length > 3 ? parts[3] : null)){
+                    resposta = "***DESAFIO***/" + assinantes.ficha(origem);
+                    break;
+                }
+                if(desde < 0 || !assinantes.assina(origem)){
+                    resposta = "***NOSUB***";
+                    break;
+                }
+                if(parts.length > 2 && !parts[2].isEmpty()){
+                    visto(parts[2]);
+                }
+                resposta = bd.delta(desde);
+                break;
+            case "***UNSUBSCRIBE***":
+                assinantes.cancela(new InetSocketAddress(endereco, porta));
+                resposta = "***OK***";
+                break;
+            case "***REGISTER***":
+                visto(data);
+                resposta = "***OK***";
+                break;
+            case "***GET_METRICS***":
+                // Só para a própria máquina (ou com serverudp.metricas.remoto):
+                // de outra origem, que pode ser forjada, não sai resposta
+                if(metricas != null && !metricas.permite(endereco)){
+                    log.debug("SERVIDOR - GET_METRICS recusado de {}", endereco);
+                    return;
+                }
+                resposta = metricas != null ? metricas.texto() : "***NOMETRICS***";
+                break;
+            case "***GET_USERS***":
+                resposta = listaUsuarios();
+                log.debug("{}", resposta);
+                break;
+            case "***ONLINE***":
+                // Renova o prazo; nome desconhecido (ex.: servidor reiniciado) volta a constar
+                visto(data);
+                // Ping de presença: não é mensagem do chat
+                resposta = "***OK***";
+                break;
+                
+            default:
+                inseridos.registra("INSERIDO: {}", mensagem, null);
+                int numero = bd.insere(data.toUpperCase());
+                assinantes.publica(bd.novidades(numero - 1));
+                // SEND_MESSAGE/<mensagem>/<último índice> recebe só o que falta
+                if(parts.length > 2){
+                    int ultimoEnviado = ultimoIndice(parts[parts.length - 1]);
+                    if(ultimoEnviado >= 0){
+                        resposta = bd.delta(ultimoEnviado);
+                    }
+                }
+                break;
+        }
+        
+        if(resposta == null){
+            resposta = bd.le();
+        }
+        envia(aSocket, (prefixo + resposta).getBytes(), endereco, porta);
+        if(metricas != null) metricas.comando(command, System.nanoTime() - inicio);
+    }
+    
+    // -Dserverudp.modo=sequencial (padrão, tudo na thread do receive),
+    // virtual (uma virtual thread por datagrama) ou pool (-Dserverudp.threads fixas).
+    // Devolve null no modo sequencial.
+    public static ExecutorService criaExecutor(){
+        String modo = System.getProperty("serverudp.modo", "sequencial");
+        switch (modo) {
+            case "virtual":
+                return Executors.newVirtualThreadPerTaskExecutor();
+            case "pool":
+                int threads = Integer.getInteger("serverudp.threads", Runtime.getRuntime().availableProcessors());
+                int fila = Integer.getInteger("serverudp.fila", 1024);
+                // Fila cheia: a própria thread do receive trata o datagrama,
+                // o que segura a leitura do socket em vez de acumular sem limite
+                return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(fila), new ThreadPoolExecutor.CallerRunsPolicy());
+            default:
+                return null;
+        }
+    }
+    
     public static void main(String[] args) {
-       System.out.println("INICIANDO");
+       log.info("INICIANDO");
        DatagramSocket aSocket = null;
        bd = new BaseDeDados();
-       usuarios = new ArrayList();
-       Atualizador atu = new Atualizador(usuarios);
-       atu.start();
+       usuarios = new ConcurrentHashMap<>();
+       // Só a thread do receive remonta, então o Remontador dispensa sincronização
+       Remontador remontador = new Remontador();
+       ExecutorService executor = criaExecutor();
+       metricas = Metricas.dasPropriedades();
+       if(metricas != null){
+           metricas.gauge("historico.tamanho", bd::tamanho);
+           metricas.gauge("usuarios", () -> usuarios.size());
+           metricas.gauge("assinantes", () -> assinantes == null ? 0 : assinantes.tamanho());
+           metricas.gauge("remontagem.descartados", remontador::getDescartados);
+           metricas.gauge("log.descartados", log::getDescartados);
+           metricas.registraJmx();
+       }
+       log.info("MODO: {}", System.getProperty("serverudp.modo", "sequencial"));
        try{
            aSocket = new DatagramSocket(6789);
+           assinantes = new Assinantes(aSocket);
+           Atualizador atu = new Atualizador(usuarios, () -> assinantes.publica(listaUsuarios()));
+           atu.start();
+           final DatagramSocket socket = aSocket;
            while(true){
-               byte[] buffer = new byte[600];
+               byte[] buffer = new byte[Fragmentador.TAMANHO_BUFFER];
                DatagramPacket request = new DatagramPacket(buffer, buffer.length);
                aSocket.receive(request);
            
-           
-                String mensagem = new String(request.getData()).trim();
-                
-                System.out.println(mensagem);
-                
-                String[] parts = mensagem.split("/");
-                String command = parts[0];
-                String data = parts[1];
-                String users = "USERS";
-                
-                switch (command) {
-                    case "***ATUALIZE***":
-                        break;
-                    case "***REGISTER***":
-                        if(usuarios.contains(data)){
-                            System.out.println(data);
-                        }else{
-                            usuarios.add(data + "1");
-                            System.out.println(data);
-                            
-                        }
-                        break;
-                    case "***GET_USERS***":
-                        for(String user : usuarios){
-                            users = users + "/" + user;
-                        }
-                        System.out.println(users);
-                        byte [] info = users.getBytes();
-                        DatagramPacket dataUsers = new DatagramPacket(info,info.length,request.getAddress(),request.getPort());
-                        aSocket.send(dataUsers);
-                        break;
-                    case "***ONLINE***":
-                        int index = usuarios.indexOf(data);
-                        String usuarionome = usuarios.get(index);
-                        int idx = usuarionome.length();
-                        StringBuilder sb = new StringBuilder(usuarionome);
-
-                        // Substituir o caractere na posição desejada
-                        sb.setCharAt(idx - 1, '1');
-
-                        // Atualizar a lista com a nova string
-                        usuarios.set(index, sb.toString());
-                        
-                    default:
-                        System.out.println("\nINSERIDO: "+mensagem+"    TEMPO: "+LocalTime.now());
-                        bd.insere(data.toUpperCase());
-                        break;
-                }
-                
-
-                String resposta = bd.le();
-                byte [] todasMsg = resposta.getBytes();
-
-                DatagramPacket reply = new DatagramPacket(todasMsg,todasMsg.length,request.getAddress(),request.getPort());
-                aSocket.send(reply);
-                 
+               byte[] recebido = request.getData();
+               int tamanho = request.getLength();
+               if(metricas != null){
+                   metricas.pacotesRecebidos.increment();
+                   metricas.bytesRecebidos.add(tamanho);
+               }
+               if(Fragmentador.ehFragmento(recebido, tamanho)){
+                   recebido = remontador.recebe(recebido, tamanho, request.getSocketAddress());
+                   if(recebido == null){
+                       continue;
+                   }
+                   tamanho = recebido.length;
+               }
+               
+               if(executor == null){
+                   trata(aSocket, recebido, tamanho, request.getAddress(), request.getPort());
+                   continue;
+               }
+               
+               // Cada datagrama tem buffer próprio, então pode seguir para outra thread
+               final byte[] dados = recebido;
+               final int tam = tamanho;
+               executor.execute(() -> {
+                   try{
+                       trata(socket, dados, tam, request.getAddress(), request.getPort());
+                   }catch(IOException e){
+                       log.erro("SERVIDOR - Input Output: {}", e.getMessage());
+                   }
+               });
            }
        
        }catch(SocketException e){
-            System.out.println("SERVIDOR - Socket: " + e.getMessage());
+            log.erro("SERVIDOR - Socket: {}", e.getMessage());
        } catch(IOException e){
-           System.out.println("SERVIDOR - Input Output: " + e.getMessage());
+           log.erro("SERVIDOR - Input Output: {}", e.getMessage());
            
        } finally{
+           if(executor != null) executor.shutdown();
            if(aSocket != null) aSocket.close();
        }
         